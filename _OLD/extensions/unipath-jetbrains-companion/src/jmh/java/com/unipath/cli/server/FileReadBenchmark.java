@@ -0,0 +1,81 @@
+package com.unipath.cli.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The body-writing half of {@code GET /file}: raw and JSON responses served
+ * from disk via a {@link FileChannel}, and from an in-memory
+ * {@link DocumentCache} snapshot. Resolving the file itself needs a project,
+ * so it isn't covered here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileReadBenchmark {
+    @Param({"1024", "1048576", "104857600"})
+    public int fileBytes;
+
+    private Path file;
+    private FileChannel channel;
+    private byte[] cached;
+    private FileTransfer.Range whole;
+
+    @Setup
+    public void setUp() throws IOException {
+        cached = Payloads.text(fileBytes).getBytes(StandardCharsets.UTF_8);
+        file = Files.createTempFile("unipath-bench", ".java");
+        Files.write(file, cached);
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        whole = FileTransfer.resolve(null, null, null, channel.size());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long rawFromDisk() throws IOException {
+        FakeHttpExchange exchange = new FakeHttpExchange();
+        FileTransfer.of(channel).writeTo(whole, exchange.getResponseBody());
+        return exchange.bytesWritten();
+    }
+
+    @Benchmark
+    public long jsonFromDisk() throws IOException {
+        return writeJson(FileTransfer.of(channel));
+    }
+
+    @Benchmark
+    public long jsonFromCache() throws IOException {
+        return writeJson(FileTransfer.of(cached));
+    }
+
+    private long writeJson(FileTransfer.Source source) throws IOException {
+        FakeHttpExchange exchange = new FakeHttpExchange();
+        try (Writer writer = JsonStreams.openWriter(exchange, 200)) {
+            writer.write("{\"content\":");
+            source.writeJson(whole, writer);
+            writer.write("}");
+        }
+        return exchange.bytesWritten();
+    }
+}
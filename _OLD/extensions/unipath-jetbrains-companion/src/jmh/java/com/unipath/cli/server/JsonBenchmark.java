@@ -0,0 +1,95 @@
+package com.unipath.cli.server;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request parsing and response serialization for a {@code tools/call}
+ * carrying {@code contentBytes} of file content. The {@code *ViaString}
+ * variants reproduce the old readRequestBody/sendResponse round trip through a
+ * String, as a baseline for {@link JsonStreams}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonBenchmark {
+    @Param({"1024", "102400", "10485760"})
+    public int contentBytes;
+
+    private byte[] requestBytes;
+    private JSONObject response;
+
+    @Setup
+    public void setUp() {
+        String content = Payloads.text(contentBytes);
+
+        JSONObject arguments = new JSONObject();
+        arguments.put("filePath", "/project/src/Main.java");
+        arguments.put("newContent", content);
+        JSONObject params = new JSONObject();
+        params.put("name", "openDiff");
+        params.put("arguments", arguments);
+        JSONObject request = new JSONObject();
+        request.put("jsonrpc", "2.0");
+        request.put("id", 1);
+        request.put("method", "tools/call");
+        request.put("params", params);
+        requestBytes = request.toString().getBytes(StandardCharsets.UTF_8);
+
+        response = new JSONObject();
+        response.put("content", content);
+        response.put("path", "/project/src/Main.java");
+        response.put("size", contentBytes);
+    }
+
+    @Benchmark
+    public Object parseStreaming() throws IOException {
+        return JsonStreams.read(new FakeHttpExchange("POST", "/mcp", requestBytes));
+    }
+
+    @Benchmark
+    public Object parseViaString() throws IOException {
+        FakeHttpExchange exchange = new FakeHttpExchange("POST", "/mcp", requestBytes);
+        StringBuilder body = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                body.append(line);
+            }
+        }
+        return new JSONObject(body.toString());
+    }
+
+    @Benchmark
+    public long writeStreaming() throws IOException {
+        FakeHttpExchange exchange = new FakeHttpExchange();
+        JsonStreams.write(exchange, 200, response);
+        return exchange.bytesWritten();
+    }
+
+    @Benchmark
+    public long writeViaString() throws IOException {
+        FakeHttpExchange exchange = new FakeHttpExchange();
+        byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+        return exchange.bytesWritten();
+    }
+}
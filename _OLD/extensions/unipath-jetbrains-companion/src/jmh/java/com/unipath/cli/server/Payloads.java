@@ -0,0 +1,19 @@
+package com.unipath.cli.server;
+
+/** Deterministic source-like text for benchmark payloads. */
+final class Payloads {
+    private static final String LINE = "    int value = compute(\"quoted\", 42);\t// comment with \u00fc and \\ escapes\n";
+
+    private Payloads() {
+    }
+
+    /** Returns roughly {@code chars} characters of code-like text. */
+    static String text(int chars) {
+        StringBuilder text = new StringBuilder(chars + LINE.length());
+        while (text.length() < chars) {
+            text.append(LINE);
+        }
+        text.setLength(chars);
+        return text.toString();
+    }
+}
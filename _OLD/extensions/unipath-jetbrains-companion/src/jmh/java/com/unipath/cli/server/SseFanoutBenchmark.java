@@ -0,0 +1,54 @@
+package com.unipath.cli.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivering one notification to every open session, as a broadcast of
+ * {@code ide/contextUpdate} does. Queues are drained on the calling thread
+ * here, so each operation includes the writes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SseFanoutBenchmark {
+    @Param({"1", "10", "100"})
+    public int sessions;
+
+    @Param({"256", "16384"})
+    public int messageBytes;
+
+    private SseBroadcaster broadcaster;
+    private String message;
+
+    @Setup
+    public void setUp() {
+        broadcaster = new SseBroadcaster();
+        for (int i = 0; i < sessions; i++) {
+            MCPSession session = new MCPSession("bench-" + i);
+            FakeHttpExchange exchange = new FakeHttpExchange();
+            session.attach(exchange, exchange.getResponseBody());
+            broadcaster.register(session);
+            session.writeWith(Runnable::run, () -> { });
+        }
+        message = "{\"jsonrpc\":\"2.0\",\"method\":\"ide/contextUpdate\",\"params\":{\"text\":\""
+                + Payloads.text(messageBytes).replace("\\", "").replace("\"", "").replace("\n", " ").replace("\t", " ")
+                + "\"}}";
+    }
+
+    @Benchmark
+    public int fanOut() {
+        for (MCPSession session : broadcaster.sessions()) {
+            broadcaster.deliver(session, message);
+        }
+        return broadcaster.size();
+    }
+}
@@ -0,0 +1,33 @@
+package com.unipath.cli.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Building and serializing the {@code tools/list} result. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ToolsListBenchmark {
+    private final List<ToolProvider> providers = List.of(new SearchTools(), new OutlineTools(null), new TreeTools(null),
+            new DiagnosticsTools(null));
+
+    @Benchmark
+    public Object describe() {
+        return MCPServer.describeTools(providers);
+    }
+
+    @Benchmark
+    public long describeAndWrite() throws IOException {
+        FakeHttpExchange exchange = new FakeHttpExchange();
+        JsonStreams.write(exchange, 200, MCPServer.describeTools(providers));
+        return exchange.bytesWritten();
+    }
+}
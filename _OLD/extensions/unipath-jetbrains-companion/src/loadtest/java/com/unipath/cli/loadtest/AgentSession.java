@@ -0,0 +1,92 @@
+package com.unipath.cli.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One simulated CLI agent: an MCP session opened with {@code initialize}
+ * whose SSE stream is drained on a background thread for the whole run.
+ */
+final class AgentSession {
+    private final String id;
+    private final InputStream stream;
+    private final LongAdder events;
+    private final CountDownLatch initialized = new CountDownLatch(1);
+
+    private AgentSession(String id, InputStream stream, LongAdder events) {
+        this.id = id;
+        this.stream = stream;
+        this.events = events;
+    }
+
+    static AgentSession open(HttpClient client, URI mcp, int index, LongAdder events)
+            throws IOException, InterruptedException {
+        String initialize = "{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"initialize\",\"params\":"
+                + "{\"clientInfo\":{\"name\":\"unipath-loadtest\",\"version\":\"1.0.0\"}}}";
+        HttpRequest request = HttpRequest.newBuilder(mcp)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(initialize))
+                .build();
+        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        String id = response.headers().firstValue("mcp-session-id").orElse(null);
+        if (response.statusCode() != 200 || id == null) {
+            response.body().close();
+            throw new IOException("initialize failed with HTTP " + response.statusCode());
+        }
+
+        AgentSession session = new AgentSession(id, response.body(), events);
+        Thread reader = new Thread(session::drain, "unipath-loadtest-sse-" + index);
+        reader.setDaemon(true);
+        reader.start();
+        if (!session.initialized.await(10, TimeUnit.SECONDS)) {
+            session.close();
+            throw new IOException("No initialize result on the SSE stream of session " + id);
+        }
+        return session;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    HttpRequest.Builder post(URI mcp, String body) {
+        return HttpRequest.newBuilder(mcp)
+                .timeout(Duration.ofSeconds(60))
+                .header("Content-Type", "application/json")
+                .header("mcp-session-id", id)
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+    }
+
+    private void drain() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("data:")) {
+                    events.increment();
+                    initialized.countDown();
+                }
+            }
+        } catch (IOException e) {
+            // Stream closed, either by us at the end of the run or by the server
+        }
+    }
+
+    void close() {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.unipath.cli.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Collects raw latency samples for one operation and reports percentiles. */
+final class LatencyRecorder {
+    private final String name;
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private long[] samples = new long[1024];
+    private int count;
+
+    LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    /** The request was never sent because too many were already outstanding. */
+    void drop() {
+        dropped.increment();
+    }
+
+    String report(double elapsedSeconds) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        long total = sorted.length;
+        return String.format("%-12s %8d %8.1f/s %6.2f%% err %6d drop   p50 %8s  p90 %8s  p99 %8s  p99.9 %8s  max %8s",
+                name, total, total / elapsedSeconds,
+                total == 0 ? 0.0 : 100.0 * errors.sum() / total, dropped.sum(),
+                millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.90)),
+                millis(percentile(sorted, 0.99)), millis(percentile(sorted, 0.999)),
+                millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,285 @@
+package com.unipath.cli.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Simulates many CLI agents against a running IDE.
+ *
+ * Opens {@code --sessions} MCP sessions, keeps their SSE streams open, and
+ * sends a weighted mix of MCP calls and legacy HTTP reads at a fixed total
+ * rate. The schedule is open-loop and latency is measured from each request's
+ * planned start, so a stalled server shows up as latency instead of silently
+ * lowering the offered load. Server threads and heap are read from
+ * {@code /metrics} before and after the run. The legacy {@code /file} and
+ * {@code /selection} endpoints live on a separate server; without
+ * {@code --http} its port is looked up in the IDE registry file whose
+ * {@code mcpPort} matches {@code --mcp}.
+ *
+ * <pre>
+ * ./gradlew loadTest --args="--sessions=20 --rate=200 --duration=60 \
+ *     --mix=tools/list:2,tools/call:1,ping:4,file:2,selection:1 --file=/path/in/project"
+ * </pre>
+ */
+public final class LoadDriver {
+    private static final String DEFAULT_URL = "http://127.0.0.1:62325";
+    private static final Pattern MCP_PORT = Pattern.compile("\"mcpPort\"\\s*:\\s*(\\d+)");
+    private static final Pattern HTTP_PORT = Pattern.compile("\"httpPort\"\\s*:\\s*(\\d+)");
+
+    private final HttpClient client;
+    private final URI mcp;
+    private final String http;
+    private final Map<String, Integer> mix;
+    private final Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+    private final String toolCall;
+    private final String file;
+    private final int maxInFlight;
+    private final Semaphore outstanding;
+    private final LongAdder sseEvents = new LongAdder();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final List<AgentSession> sessions = new ArrayList<>();
+
+    private LoadDriver(Map<String, String> options) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        this.mcp = URI.create(options.getOrDefault("mcp", DEFAULT_URL) + "/mcp");
+        this.mix = parseMix(options.getOrDefault("mix", "tools/list:2,tools/call:1,ping:4,file:2,selection:1"));
+        this.http = options.containsKey("http") ? options.get("http") : registryHttp(mcp).orElse(null);
+        this.toolCall = "\"params\":{\"name\":\"" + options.getOrDefault("tool", "findFiles") + "\",\"arguments\":"
+                + options.getOrDefault("toolArgs", "{\"query\":\"Main\",\"limit\":20}") + "}";
+        this.file = options.get("file");
+        this.maxInFlight = Integer.parseInt(options.getOrDefault("maxInFlight", "1000"));
+        this.outstanding = new Semaphore(maxInFlight);
+        for (String op : mix.keySet()) {
+            recorders.put(op, new LatencyRecorder(op));
+        }
+        if (mix.containsKey("file") && file == null) {
+            throw new IllegalArgumentException("The file operation needs --file=<absolute path in the project>");
+        }
+        if ((mix.containsKey("file") || mix.containsKey("selection")) && http == null) {
+            throw new IllegalArgumentException("No IDE registry entry has mcpPort " + mcp.getPort()
+                    + "; the file and selection operations need --http=<legacy server URL>");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int sessionCount = Integer.parseInt(options.getOrDefault("sessions", "10"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+
+        LoadDriver driver = new LoadDriver(options);
+        Map<String, Long> before = driver.scrapeServer();
+        driver.openSessions(sessionCount);
+        Map<String, Long> opened = driver.scrapeServer();
+        double elapsed = driver.run(rate, durationSeconds);
+        Map<String, Long> after = driver.scrapeServer();
+        driver.closeSessions();
+
+        System.out.printf("%n%d sessions, offered %.1f req/s for %.1fs, %d SSE events received%n",
+                driver.sessions.size(), rate, elapsed, driver.sseEvents.sum());
+        for (LatencyRecorder recorder : driver.recorders.values()) {
+            System.out.println(recorder.report(elapsed));
+        }
+        printServer("threads", "unipath_jvm_threads", before, opened, after, 1);
+        printServer("heap MB", "unipath_jvm_heap_used_bytes", before, opened, after, 1024 * 1024);
+    }
+
+    private void openSessions(int count) throws IOException, InterruptedException {
+        for (int i = 0; i < count; i++) {
+            sessions.add(AgentSession.open(client, mcp, i, sseEvents));
+        }
+    }
+
+    private void closeSessions() {
+        sessions.forEach(AgentSession::close);
+    }
+
+    private double run(double rate, int durationSeconds) throws InterruptedException {
+        long periodNanos = (long) (1_000_000_000L / rate);
+        long start = System.nanoTime();
+        long total = (long) (rate * durationSeconds);
+        AtomicLong sent = new AtomicLong();
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+        ticker.scheduleAtFixedRate(() -> {
+            // Catch up on ticks the scheduler fell behind on, keeping the planned start times
+            long due = Math.min(total, (System.nanoTime() - start) / periodNanos + 1);
+            for (long n = sent.get(); n < due; n = sent.incrementAndGet()) {
+                fire(start + n * periodNanos);
+            }
+        }, 0, Math.max(1, periodNanos / 1000), TimeUnit.MICROSECONDS);
+
+        long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        ticker.shutdownNow();
+        // Let outstanding requests finish so their latency is counted
+        if (outstanding.tryAcquire(maxInFlight, 30, TimeUnit.SECONDS)) {
+            outstanding.release(maxInFlight);
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private void fire(long plannedNanos) {
+        String op = pick();
+        LatencyRecorder recorder = recorders.get(op);
+        if (!outstanding.tryAcquire()) {
+            recorder.drop();
+            return;
+        }
+        AgentSession session = sessions.get(ThreadLocalRandom.current().nextInt(sessions.size()));
+        client.sendAsync(request(op, session), HttpResponse.BodyHandlers.ofString())
+                .whenComplete((response, error) -> {
+                    recorder.record(System.nanoTime() - plannedNanos);
+                    if (error != null || response.statusCode() >= 400 || isError(response.body())) {
+                        recorder.error();
+                    }
+                    outstanding.release();
+                });
+    }
+
+    private HttpRequest request(String op, AgentSession session) {
+        long id = nextId.getAndIncrement();
+        switch (op) {
+            case "tools/list":
+            case "ping":
+                return session.post(mcp, "{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"" + op + "\"}").build();
+            case "tools/call":
+                return session.post(mcp, "{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"tools/call\"," + toolCall + "}")
+                        .build();
+            case "file":
+                return HttpRequest.newBuilder(URI.create(http + "/file?path="
+                        + URLEncoder.encode(file, StandardCharsets.UTF_8))).timeout(Duration.ofSeconds(60)).build();
+            default:
+                return HttpRequest.newBuilder(URI.create(http + "/" + op)).timeout(Duration.ofSeconds(60)).build();
+        }
+    }
+
+    /** JSON-RPC errors, legacy {@code {"error": ...}} bodies and failed tool results; payload text is escaped. */
+    private static boolean isError(String body) {
+        return body != null && (body.contains("\"error\":") || body.contains("\"isError\":true"));
+    }
+
+    private String pick() {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int r = ThreadLocalRandom.current().nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            r -= entry.getValue();
+            if (r < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Finds the legacy HTTP server of the IDE serving {@code mcp} from the
+     * registry files in {@code <tmpdir>/unipath-ide}.
+     */
+    private static Optional<String> registryHttp(URI mcp) {
+        String dir = System.getProperty("unipath.registry.dir");
+        Path base = dir != null ? Paths.get(dir) : Paths.get(System.getProperty("java.io.tmpdir"), "unipath-ide");
+        if (!Files.isDirectory(base)) {
+            return Optional.empty();
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(base, "*.json")) {
+            for (Path file : files) {
+                String json = Files.readString(file, StandardCharsets.UTF_8);
+                Matcher mcpPort = MCP_PORT.matcher(json);
+                Matcher httpPort = HTTP_PORT.matcher(json);
+                if (mcpPort.find() && Integer.parseInt(mcpPort.group(1)) == mcp.getPort() && httpPort.find()) {
+                    return Optional.of("http://" + mcp.getHost() + ":" + httpPort.group(1));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read IDE registry " + base + ": " + e.getMessage());
+        }
+        return Optional.empty();
+    }
+
+    /** Reads the unlabelled gauges from the MCP server's {@code /metrics}. */
+    private Map<String, Long> scrapeServer() {
+        Map<String, Long> values = new HashMap<>();
+        try {
+            HttpRequest request = HttpRequest.newBuilder(mcp.resolve("/metrics")).timeout(Duration.ofSeconds(5)).build();
+            for (String line : client.send(request, HttpResponse.BodyHandlers.ofString()).body().split("\n")) {
+                int space = line.indexOf(' ');
+                if (line.startsWith("#") || space < 0 || line.indexOf('{') >= 0) {
+                    continue;
+                }
+                try {
+                    values.put(line.substring(0, space), (long) Double.parseDouble(line.substring(space + 1)));
+                } catch (NumberFormatException e) {
+                    // Not a gauge we report on
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read server metrics: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return values;
+    }
+
+    private static void printServer(String label, String metric, Map<String, Long> before, Map<String, Long> opened,
+                                    Map<String, Long> after, long unit) {
+        if (!before.containsKey(metric) || !after.containsKey(metric)) {
+            return;
+        }
+        System.out.printf("server %-8s before %6d  sessions open %6d  after run %6d  growth %+d%n", label,
+                before.get(metric) / unit, opened.getOrDefault(metric, 0L) / unit, after.get(metric) / unit,
+                (after.get(metric) - before.get(metric)) / unit);
+    }
+
+    private static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] weighted = part.trim().split(":");
+            String op = weighted[0];
+            if (!List.of("tools/list", "tools/call", "ping", "file", "selection").contains(op)) {
+                throw new IllegalArgumentException("Unknown operation in --mix: " + op);
+            }
+            mix.put(op, weighted.length > 1 ? Integer.parseInt(weighted[1]) : 1);
+        }
+        return mix;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,921 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * HTTP/1.1 on NIO channels, for what {@code com.sun.net.httpserver} can't do:
+ * listening on a Unix domain socket, so local CLIs skip TCP loopback and
+ * don't compete for ports with other IDE instances, and handing a connection
+ * over to another protocol ({@link #upgrade}), which the WebSocket transport
+ * needs.
+ *
+ * This accepts connections itself and hands each request to the same
+ * {@link HttpHandler}s and {@link Filter}s through an {@link HttpExchange} of
+ * its own. Idle connections wait in a selector; a connection only occupies a
+ * handler thread while a request on it is being handled, or while its SSE
+ * stream is open. A Unix socket file is created readable and writable by the
+ * owner only; TCP listeners bind to loopback.
+ */
+final class ChannelServer {
+    private static final Logger LOG = Logger.getInstance(ChannelServer.class);
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private final SocketAddress address;
+    private final String name;
+    private final Executor executor;
+    private final List<Context> contexts = new ArrayList<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final Queue<Connection> idle = new ConcurrentLinkedQueue<>();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+
+    /** A route; handlers see it as the exchange's {@link HttpContext}. */
+    private static final class Context extends HttpContext {
+        final String path;
+        final HttpHandler handler;
+        final List<Filter> filters;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+        Context(String path, HttpHandler handler, List<Filter> filters) {
+            this.path = path;
+            this.handler = handler;
+            this.filters = filters;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            throw new UnsupportedOperationException("Routes are fixed once created");
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        /** Always null: this isn't a {@link com.sun.net.httpserver.HttpServer}. */
+        @Override
+        public HttpServer getServer() {
+            return null;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            throw new UnsupportedOperationException("Authentication is done by filters");
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return null;
+        }
+    }
+
+    private ChannelServer(SocketAddress address, String name, Executor executor) {
+        this.address = address;
+        this.name = name;
+        this.executor = executor;
+    }
+
+    static ChannelServer unix(Path path, Executor executor) {
+        return new ChannelServer(UnixDomainSocketAddress.of(path), path.toString(), executor);
+    }
+
+    /** A loopback TCP listener; port 0 picks a free one. */
+    static ChannelServer tcp(int port, Executor executor) {
+        return new ChannelServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), "port " + port, executor);
+    }
+
+    /** The bound port of a TCP listener, once started. */
+    int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    /** Routes requests whose path starts with {@code path}, like {@code HttpServer.createContext}. */
+    void createContext(String path, HttpHandler handler, Filter... filters) {
+        contexts.add(new Context(path, handler, List.of(filters)));
+    }
+
+    void start() throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            Path path = ((UnixDomainSocketAddress) address).getPath();
+            // A socket file left behind by a crashed IDE would make bind fail
+            Files.deleteIfExists(path);
+            serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            serverChannel.bind(address);
+            try {
+                Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system; the socket inherits the directory's access rules
+            }
+        } else {
+            serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.bind(address);
+            } catch (IOException e) {
+                serverChannel.close();
+                throw e;
+            }
+        }
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        Thread thread = new Thread(this::selectLoop, "unipath-mcp-" + (address instanceof UnixDomainSocketAddress ? "uds" : "tcp"));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to close " + name, e);
+        }
+        connections.forEach(Connection::close);
+        if (address instanceof UnixDomainSocketAddress) {
+            try {
+                Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            } catch (IOException e) {
+                LOG.warn("Failed to delete " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Accepts connections and hands the readable ones to the executor. A
+     * failure on one connection, or to accept one (e.g. out of file
+     * descriptors), only closes or skips that connection.
+     */
+    private void selectLoop() {
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select();
+                for (Connection connection; (connection = idle.poll()) != null; ) {
+                    try {
+                        connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (IOException | RuntimeException e) {
+                        // Closed while it waited in the queue
+                        connection.close();
+                    }
+                }
+
+                List<Connection> ready = new ArrayList<>();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add((Connection) key.attachment());
+                    }
+                }
+                selector.selectedKeys().clear();
+                if (!ready.isEmpty()) {
+                    // Completes the deregistration so the channels can be switched back to blocking mode
+                    selector.selectNow();
+                    selector.selectedKeys().clear();
+                    for (Connection connection : ready) {
+                        connection.dispatch();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // Stopped
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                LOG.error("Server on " + name + " failed", e);
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                LOG.warn("Failed to accept a connection on " + name, e);
+            }
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        Connection connection = new Connection(channel);
+        try {
+            if (!(address instanceof UnixDomainSocketAddress)) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            channel.configureBlocking(false);
+            connections.add(connection);
+            channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to set up a connection on " + name, e);
+            connection.close();
+        }
+    }
+
+    /** The raw connection of an upgraded request; the handler owns it from then on. */
+    static final class Upgraded {
+        final InputStream in;
+        final OutputStream out;
+        private final Connection connection;
+
+        private Upgraded(Connection connection) {
+            this.in = connection.in;
+            this.out = connection.out;
+            this.connection = connection;
+        }
+
+        void close() {
+            connection.close();
+        }
+    }
+
+    /** Whether {@code exchange} came from a {@link ChannelServer} and so can be {@link #upgrade upgraded}. */
+    static boolean canUpgrade(HttpExchange exchange) {
+        return exchange instanceof SocketExchange;
+    }
+
+    /**
+     * Answers {@code 101 Switching Protocols} with the response headers set so
+     * far, and takes the connection out of HTTP processing.
+     */
+    static Upgraded upgrade(HttpExchange exchange) throws IOException {
+        return ((SocketExchange) exchange).upgrade();
+    }
+
+    private Context match(String requestPath) {
+        Context best = null;
+        for (Context context : contexts) {
+            if (requestPath.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    /** One client connection; serves its requests one after another. */
+    private final class Connection {
+        final SocketChannel channel;
+        final InputStream in;
+        final OutputStream out;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.in = new BufferedInputStream(new ChannelInputStream(channel), JsonStreams.BUFFER_SIZE);
+            this.out = new BufferedOutputStream(new ChannelOutputStream(channel), JsonStreams.BUFFER_SIZE);
+        }
+
+        void dispatch() {
+            try {
+                channel.configureBlocking(true);
+                executor.execute(this::serve);
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        private void serve() {
+            SocketExchange exchange;
+            try {
+                exchange = SocketExchange.read(this);
+            } catch (IOException | IllegalArgumentException e) {
+                close();
+                return;
+            }
+            if (exchange == null) {
+                close();
+                return;
+            }
+            handle(exchange);
+            exchange.finished.thenAccept(keepAlive -> {
+                if (keepAlive) {
+                    executor.execute(() -> next(exchange));
+                } else {
+                    close();
+                }
+            });
+        }
+
+        private void handle(SocketExchange exchange) {
+            Context context = match(exchange.getRequestURI().getPath());
+            exchange.context = context;
+            try {
+                if (context == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    new Filter.Chain(context.filters, context.handler).doFilter(exchange);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Request on " + name + " failed", e);
+                exchange.abort();
+            }
+        }
+
+        /** Skips whatever the handler left of the request body, then waits for the next request. */
+        private void next(SocketExchange previous) {
+            try {
+                previous.rawBody.transferTo(OutputStream.nullOutputStream());
+                if (in.available() > 0) {
+                    serve();
+                    return;
+                }
+                channel.configureBlocking(false);
+                idle.add(this);
+                selector.wakeup();
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    /** An {@link HttpExchange} read from a {@link Connection}. */
+    private static final class SocketExchange extends HttpExchange {
+        private static final InetSocketAddress LOOPBACK = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+        private final Connection connection;
+        private final String method;
+        private final URI uri;
+        private final String protocol;
+        private final Headers requestHeaders;
+        private final Headers responseHeaders = new Headers();
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final InputStream rawBody;
+        private final boolean keepAlive;
+        private Context context;
+        /** Completed once the response is over, with whether the connection can take another request. */
+        final CompletableFuture<Boolean> finished = new CompletableFuture<>();
+        private InputStream requestBody;
+        private OutputStream responseBody = new ResponseBody();
+        private OutputStream sink;
+        private int code = -1;
+
+        private SocketExchange(Connection connection, String method, URI uri, String protocol, Headers headers,
+                               InputStream body) {
+            this.connection = connection;
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.requestHeaders = headers;
+            this.rawBody = body;
+            this.requestBody = body;
+            this.keepAlive = "HTTP/1.1".equals(protocol) && !"close".equalsIgnoreCase(headers.getFirst("Connection"));
+        }
+
+        /** Reads the next request head, or returns {@code null} if the client closed the connection. */
+        static SocketExchange read(Connection connection) throws IOException {
+            int[] budget = {MAX_HEADER_BYTES};
+            String requestLine = readLine(connection.in, budget);
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("Malformed request line");
+            }
+            Headers headers = new Headers();
+            for (String line; !(line = readLine(connection.in, budget)).isEmpty(); ) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    throw new IOException("Malformed header");
+                }
+                headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+
+            InputStream body;
+            String length = headers.getFirst("Content-Length");
+            if ("chunked".equalsIgnoreCase(headers.getFirst("Transfer-Encoding"))) {
+                body = new ChunkedInputStream(connection.in);
+            } else if (length != null) {
+                body = new FixedLengthInputStream(connection.in, Long.parseLong(length.trim()));
+            } else {
+                body = InputStream.nullInputStream();
+            }
+            if ("100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                connection.out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                connection.out.flush();
+            }
+            return new SocketExchange(connection, parts[0], URI.create(parts[1]), parts[2], headers, body);
+        }
+
+        private static String readLine(InputStream in, int[] budget) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    if (line.size() == 0 && budget[0] == MAX_HEADER_BYTES) {
+                        return null;
+                    }
+                    throw new IOException("Connection closed mid-request");
+                }
+                if (--budget[0] < 0) {
+                    throw new IOException("Request head too large");
+                }
+                line.write(b);
+            }
+            String text = line.toString(StandardCharsets.ISO_8859_1);
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            if (code >= 0) {
+                throw new IOException("Response headers already sent");
+            }
+            code = rCode;
+            boolean noBody = responseLength < 0 || rCode == 204 || rCode == 304;
+            if (noBody) {
+                if (rCode != 204 && rCode != 304) {
+                    responseHeaders.set("Content-Length", "0");
+                }
+            } else if (responseLength == 0) {
+                responseHeaders.set("Transfer-Encoding", "chunked");
+                sink = new ChunkedOutputStream(connection.out);
+            } else {
+                responseHeaders.set("Content-Length", String.valueOf(responseLength));
+                sink = new FixedLengthOutputStream(connection.out, responseLength);
+            }
+            if (!keepAlive) {
+                responseHeaders.set("Connection", "close");
+            }
+            writeHead(rCode);
+            if (noBody) {
+                connection.out.flush();
+                finished.complete(keepAlive);
+            }
+        }
+
+        Upgraded upgrade() throws IOException {
+            if (code >= 0) {
+                throw new IOException("Response headers already sent");
+            }
+            code = 101;
+            writeHead(code);
+            connection.out.flush();
+            // finished never completes, so the connection doesn't go back to reading requests
+            return new Upgraded(connection);
+        }
+
+        private void writeHead(int rCode) throws IOException {
+            StringBuilder head = new StringBuilder("HTTP/1.1 ").append(rCode).append(' ').append(reason(rCode))
+                    .append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            head.append("\r\n");
+            connection.out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private static String reason(int code) {
+            switch (code) {
+                case 101: return "Switching Protocols";
+                case 200: return "OK";
+                case 202: return "Accepted";
+                case 204: return "No Content";
+                case 206: return "Partial Content";
+                case 304: return "Not Modified";
+                case 400: return "Bad Request";
+                case 403: return "Forbidden";
+                case 404: return "Not Found";
+                case 405: return "Method Not Allowed";
+                case 409: return "Conflict";
+                case 416: return "Range Not Satisfiable";
+                case 426: return "Upgrade Required";
+                case 429: return "Too Many Requests";
+                case 500: return "Internal Server Error";
+                default: return "";
+            }
+        }
+
+        /** Ends a request whose handler threw: answers 500 if nothing was sent yet, then drops the connection. */
+        void abort() {
+            if (code < 0) {
+                try {
+                    responseHeaders.clear();
+                    responseHeaders.set("Connection", "close");
+                    sendResponseHeaders(500, -1);
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            finished.complete(false);
+        }
+
+        /** What {@link #getResponseBody} hands out; writes go to the framing chosen by {@link #sendResponseHeaders}. */
+        private final class ResponseBody extends OutputStream {
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (sink == null) {
+                    throw new IOException(code < 0 ? "sendResponseHeaders not called" : "Response has no body");
+                }
+                sink.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (sink != null) {
+                    sink.flush();
+                }
+            }
+
+            @Override
+            public synchronized void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (sink == null) {
+                    finished.complete(code >= 0 && keepAlive);
+                    return;
+                }
+                boolean complete = false;
+                try {
+                    sink.close();
+                    complete = !(sink instanceof FixedLengthOutputStream) || ((FixedLengthOutputStream) sink).remaining == 0;
+                } finally {
+                    finished.complete(complete && keepAlive);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                responseBody.close();
+            } catch (IOException e) {
+                finished.complete(false);
+            }
+            finished.complete(false);
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return method;
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return context;
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return responseBody;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return code;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            try {
+                SocketAddress remote = connection.channel.getRemoteAddress();
+                return remote instanceof InetSocketAddress ? (InetSocketAddress) remote : LOOPBACK;
+            } catch (IOException e) {
+                return LOOPBACK;
+            }
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return LOOPBACK;
+        }
+
+        @Override
+        public String getProtocol() {
+            return protocol.toUpperCase(Locale.ROOT);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) {
+                requestBody = i;
+            }
+            if (o != null) {
+                responseBody = o;
+            }
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+    }
+
+    /**
+     * Reads straight from a blocking channel. Unlike {@link java.nio.channels.Channels#newInputStream}
+     * this doesn't hold the channel's blocking lock, so an upgraded connection
+     * can write while its reader waits.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    private static final class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static final class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new IOException("Connection closed mid-body");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // The connection outlives the request
+        }
+    }
+
+    private static final class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long chunkRemaining;
+        private boolean eof;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (chunkRemaining == 0) {
+                int[] budget = {MAX_HEADER_BYTES};
+                String size = SocketExchange.readLine(in, budget);
+                if (size == null) {
+                    throw new IOException("Connection closed mid-body");
+                }
+                int semicolon = size.indexOf(';');
+                chunkRemaining = Long.parseLong((semicolon < 0 ? size : size.substring(0, semicolon)).trim(), 16);
+                if (chunkRemaining == 0) {
+                    // Skip trailers
+                    while (!SocketExchange.readLine(in, budget).isEmpty()) {
+                        continue;
+                    }
+                    eof = true;
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (n < 0) {
+                throw new IOException("Connection closed mid-body");
+            }
+            chunkRemaining -= n;
+            if (chunkRemaining == 0 && !SocketExchange.readLine(in, new int[] {2}).isEmpty()) {
+                throw new IOException("Malformed chunk");
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // The connection outlives the request
+        }
+    }
+
+    private static final class FixedLengthOutputStream extends OutputStream {
+        private final OutputStream out;
+        long remaining;
+
+        FixedLengthOutputStream(OutputStream out, long length) {
+            this.out = out;
+            this.remaining = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining) {
+                throw new IOException("Response body longer than its Content-Length");
+            }
+            out.write(b, off, len);
+            remaining -= len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static final class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.unipath.cli.server;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content-Encoding support for the HTTP handlers.
+ *
+ * Responses of at least {@code unipath.compression.minBytes} are gzip or
+ * deflate encoded when the client's Accept-Encoding allows it. Deflaters and
+ * their output buffers are pooled, since file contents make up most of what
+ * we send. Request bodies sent with either encoding are decoded as they are
+ * read.
+ */
+final class Compression {
+    static final String MIN_BYTES_PROPERTY = "unipath.compression.minBytes";
+    static final long MIN_BYTES = Long.getLong(MIN_BYTES_PROPERTY, 1024L);
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final int MAX_POOLED_DEFLATERS = 16;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    // gzip frames raw deflate data itself; HTTP "deflate" means the zlib format
+    private static final Queue<Deflater> RAW = new ConcurrentLinkedQueue<>();
+    private static final Queue<Deflater> ZLIB = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private Compression() {
+    }
+
+    /** The encoding to use for a response to {@code exchange}, or {@code null} for none. */
+    static String negotiate(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String part : accept.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            if (!GZIP.equals(coding) && !DEFLATE.equals(coding)) {
+                continue;
+            }
+            if (isRejected(params)) {
+                continue;
+            }
+            if (GZIP.equals(coding)) {
+                return GZIP;
+            }
+            deflate = true;
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    private static boolean isRejected(String[] params) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2)) <= 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** The request body, decoded according to its Content-Encoding. */
+    static InputStream requestBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if (encoding == null) {
+            return body;
+        }
+        switch (encoding.trim().toLowerCase(Locale.ROOT)) {
+            case "":
+            case "identity":
+                return body;
+            case GZIP:
+                return new GZIPInputStream(body, JsonStreams.BUFFER_SIZE);
+            case DEFLATE:
+                return new InflaterInputStream(body);
+            default:
+                throw new IOException("Unsupported Content-Encoding: " + encoding);
+        }
+    }
+
+    /** Wraps {@code out} so that everything written to it is compressed with {@code encoding}. */
+    static OutputStream compress(OutputStream out, String encoding) throws IOException {
+        boolean gzip = GZIP.equals(encoding);
+        DeflatingStream stream = new DeflatingStream(out, acquire(gzip), gzip);
+        if (gzip) {
+            out.write(GZIP_HEADER);
+        }
+        return stream;
+    }
+
+    private static Deflater acquire(boolean raw) {
+        Deflater deflater = (raw ? RAW : ZLIB).poll();
+        if (deflater == null) {
+            // Localhost traffic: the fastest level already removes most of the redundancy in source text
+            return new Deflater(Deflater.BEST_SPEED, raw);
+        }
+        POOLED.decrementAndGet();
+        return deflater;
+    }
+
+    private static void release(Deflater deflater, boolean raw) {
+        deflater.reset();
+        if (POOLED.incrementAndGet() <= MAX_POOLED_DEFLATERS) {
+            (raw ? RAW : ZLIB).offer(deflater);
+        } else {
+            POOLED.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /** A {@code DeflaterOutputStream} that borrows its deflater and buffer from the pools. */
+    private static final class DeflatingStream extends OutputStream {
+        private final OutputStream out;
+        private final Deflater deflater;
+        private final boolean gzip;
+        private final CRC32 crc = new CRC32();
+        private byte[] buffer = JsonStreams.acquire();
+
+        DeflatingStream(OutputStream out, Deflater deflater, boolean gzip) {
+            this.out = out;
+            this.deflater = deflater;
+            this.gzip = gzip;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (gzip) {
+                crc.update(b, off, len);
+            }
+            deflater.setInput(b, off, len);
+            // The deflater keeps a reference to b, so consume all of it before returning
+            while (!deflater.needsInput()) {
+                drain(Deflater.NO_FLUSH);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            int n;
+            do {
+                n = drain(Deflater.SYNC_FLUSH);
+            } while (n == buffer.length);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain(Deflater.NO_FLUSH);
+                }
+                if (gzip) {
+                    writeInt((int) crc.getValue());
+                    writeInt((int) deflater.getBytesRead());
+                }
+                out.close();
+            } finally {
+                release(deflater, gzip);
+                JsonStreams.release(buffer);
+                buffer = null;
+            }
+        }
+
+        private int drain(int flush) throws IOException {
+            int n = deflater.deflate(buffer, 0, buffer.length, flush);
+            if (n > 0) {
+                out.write(buffer, 0, n);
+            }
+            return n;
+        }
+
+        private void writeInt(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+            out.write((value >> 16) & 0xff);
+            out.write((value >> 24) & 0xff);
+        }
+    }
+}
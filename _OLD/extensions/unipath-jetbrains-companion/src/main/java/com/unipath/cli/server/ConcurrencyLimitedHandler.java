@@ -0,0 +1,88 @@
+package com.unipath.cli.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of requests a single endpoint handles at once.
+ *
+ * Requests over the limit wait up to the queue timeout for a permit and are
+ * then rejected with HTTP 429 and a JSON-RPC error, so a burst from one agent
+ * can't pile up unbounded work inside the IDE.
+ */
+public final class ConcurrencyLimitedHandler implements HttpHandler {
+    static final String MAX_CONCURRENT_PROPERTY = "unipath.server.maxConcurrent";
+    static final String QUEUE_TIMEOUT_PROPERTY = "unipath.server.queueTimeoutMs";
+
+    // JSON-RPC implementation-defined server error range
+    static final int TOO_MANY_REQUESTS = -32029;
+
+    private final HttpHandler delegate;
+    private final Semaphore permits;
+    private final long queueTimeoutMs;
+
+    public ConcurrencyLimitedHandler(HttpHandler delegate, int maxConcurrent, long queueTimeoutMs) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(maxConcurrent);
+        this.queueTimeoutMs = queueTimeoutMs;
+    }
+
+    public static HttpHandler limit(HttpHandler delegate) {
+        return limit(delegate, Integer.getInteger(MAX_CONCURRENT_PROPERTY, 16));
+    }
+
+    public static HttpHandler limit(HttpHandler delegate, int maxConcurrent) {
+        return new ConcurrencyLimitedHandler(delegate, maxConcurrent,
+                Long.getLong(QUEUE_TIMEOUT_PROPERTY, 2000L));
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        boolean acquired;
+        long waiting = System.nanoTime();
+        try {
+            acquired = permits.tryAcquire(queueTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        Tracing.record("limit.wait", waiting);
+        if (!acquired) {
+            reject(exchange);
+            return;
+        }
+        try {
+            delegate.handle(exchange);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        JSONObject response = new JSONObject();
+        response.put("jsonrpc", "2.0");
+
+        JSONObject error = new JSONObject();
+        error.put("code", TOO_MANY_REQUESTS);
+        error.put("message", "Too many concurrent requests for " + exchange.getHttpContext().getPath());
+        response.put("error", error);
+        response.put("id", JSONObject.NULL);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().set("Retry-After", "1");
+
+        byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(429, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.SelectionModel;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable view of the editor context we report to MCP clients: open files,
+ * the active file and its selection or caret. Captured on the EDT, where the
+ * editor models live; once built it can be read from any thread without locks.
+ */
+final class ContextSnapshot {
+    static final ContextSnapshot EMPTY = new ContextSnapshot(Collections.emptyMap(), null, null);
+
+    /** Open files keyed by path, in tab order; values are display names. */
+    final Map<String, String> openFiles;
+    final String activeFile;
+    final Selection selection;
+
+    static final class Selection {
+        final String file;
+        final int start;
+        final int end;
+        final int cursor;
+        /** Document modification stamp and immutable text at capture time; not part of equality. */
+        final long documentStamp;
+        private final CharSequence text;
+
+        Selection(String file, int start, int end, int cursor, long documentStamp, CharSequence text) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.cursor = cursor;
+            this.documentStamp = documentStamp;
+            this.text = text;
+        }
+
+        boolean hasSelection() {
+            return end > start;
+        }
+
+        /** Copies the selected text out of the captured document text, on the calling thread. */
+        String selectedText() {
+            return hasSelection() ? text.subSequence(start, end).toString() : "";
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("uri", "file://" + file);
+            json.put("hasSelection", hasSelection());
+            json.put("start", start);
+            json.put("end", end);
+            json.put("cursor", cursor);
+            return json;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Selection)) {
+                return false;
+            }
+            Selection other = (Selection) o;
+            return start == other.start && end == other.end && cursor == other.cursor && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, start, end, cursor);
+        }
+    }
+
+    private ContextSnapshot(Map<String, String> openFiles, String activeFile, Selection selection) {
+        this.openFiles = openFiles;
+        this.activeFile = activeFile;
+        this.selection = selection;
+    }
+
+    static ContextSnapshot capture(Project project) {
+        if (project == null || project.isDisposed()) {
+            return EMPTY;
+        }
+        FileEditorManager manager = FileEditorManager.getInstance(project);
+        Map<String, String> files = new LinkedHashMap<>();
+        for (VirtualFile file : manager.getOpenFiles()) {
+            files.put(file.getPath(), file.getName());
+        }
+
+        String activeFile = null;
+        Selection selection = null;
+        Editor editor = manager.getSelectedTextEditor();
+        if (editor != null) {
+            VirtualFile file = FileDocumentManager.getInstance().getFile(editor.getDocument());
+            if (file != null) {
+                activeFile = file.getPath();
+                SelectionModel model = editor.getSelectionModel();
+                Document document = editor.getDocument();
+                selection = new Selection(activeFile, model.getSelectionStart(), model.getSelectionEnd(),
+                        editor.getCaretModel().getOffset(), document.getModificationStamp(),
+                        document.getImmutableCharSequence());
+            }
+        }
+        return new ContextSnapshot(Collections.unmodifiableMap(files), activeFile, selection);
+    }
+
+    JSONArray openFilesJson() {
+        JSONArray array = new JSONArray();
+        openFiles.forEach((path, name) -> array.put(fileJson(path, name)));
+        return array;
+    }
+
+    /** Everything that changed from {@code previous} to this snapshot, or {@code null} if nothing did. */
+    JSONObject deltaFrom(ContextSnapshot previous) {
+        JSONObject delta = new JSONObject();
+
+        List<JSONObject> added = new ArrayList<>();
+        openFiles.forEach((path, name) -> {
+            if (!previous.openFiles.containsKey(path)) {
+                added.add(fileJson(path, name));
+            }
+        });
+        List<String> removed = new ArrayList<>();
+        for (String path : previous.openFiles.keySet()) {
+            if (!openFiles.containsKey(path)) {
+                removed.add("file://" + path);
+            }
+        }
+        if (!added.isEmpty()) {
+            delta.put("added", new JSONArray(added));
+        }
+        if (!removed.isEmpty()) {
+            delta.put("removed", new JSONArray(removed));
+        }
+        if (!Objects.equals(activeFile, previous.activeFile)) {
+            delta.put("activeFile", activeFile == null ? JSONObject.NULL : "file://" + activeFile);
+        }
+        if (!Objects.equals(selection, previous.selection)) {
+            delta.put("selection", selection == null ? JSONObject.NULL : selection.toJson());
+        }
+        return delta.isEmpty() ? null : delta;
+    }
+
+    private static JSONObject fileJson(String path, String name) {
+        JSONObject fileInfo = new JSONObject();
+        fileInfo.put("uri", "file://" + path);
+        fileInfo.put("name", name);
+        return fileInfo;
+    }
+}
@@ -0,0 +1,171 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.CaretEvent;
+import com.intellij.openapi.editor.event.CaretListener;
+import com.intellij.openapi.editor.event.EditorEventMulticaster;
+import com.intellij.openapi.editor.event.SelectionEvent;
+import com.intellij.openapi.editor.event.SelectionListener;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerEvent;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Turns editor events of one project into debounced {@code ide/contextUpdate}
+ * deltas for the sessions bound to it, and keeps the latest
+ * {@link ContextSnapshot} for HTTP handlers to read.
+ *
+ * Events only mark the context dirty; after the debounce window one snapshot
+ * is taken on the EDT (in any modality, so dialogs don't hold it back),
+ * published to {@link #current()} and diffed against the last published one. Every
+ * notification carries a sequence number. A client that sees a gap can call
+ * {@code ide/getContext} for a full snapshot and continue from its {@code seq}.
+ */
+final class ContextTracker {
+    static final String DEBOUNCE_PROPERTY = "unipath.context.debounceMs";
+
+    private final SseBroadcaster broadcaster;
+    private final Project project;
+    private final Predicate<MCPSession> audience;
+    private final long debounceMs;
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private ContextSnapshot last;
+    private volatile ContextSnapshot current;
+    private long seq;
+
+    ContextTracker(SseBroadcaster broadcaster, Project project, Predicate<MCPSession> audience) {
+        this.broadcaster = broadcaster;
+        this.project = project;
+        this.audience = audience;
+        this.debounceMs = Long.getLong(DEBOUNCE_PROPERTY, 150L);
+    }
+
+    void listenToEditors(Disposable parent) {
+        EditorEventMulticaster multicaster = EditorFactory.getInstance().getEventMulticaster();
+        multicaster.addCaretListener(new CaretListener() {
+            @Override
+            public void caretPositionChanged(@NotNull CaretEvent event) {
+                if (event.getEditor().getProject() == project) {
+                    changed();
+                }
+            }
+        }, parent);
+        multicaster.addSelectionListener(new SelectionListener() {
+            @Override
+            public void selectionChanged(@NotNull SelectionEvent event) {
+                if (event.getEditor().getProject() == project) {
+                    changed();
+                }
+            }
+        }, parent);
+    }
+
+    void listenToProject(Project project) {
+        project.getMessageBus().connect(project).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER,
+                new FileEditorManagerListener() {
+                    @Override
+                    public void fileOpened(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+                        changed();
+                    }
+
+                    @Override
+                    public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+                        changed();
+                    }
+
+                    @Override
+                    public void selectionChanged(@NotNull FileEditorManagerEvent event) {
+                        changed();
+                    }
+                });
+    }
+
+    void changed() {
+        if (flushPending.compareAndSet(false, true) && broadcaster.schedule(this::flush, debounceMs) == null) {
+            // Not started yet: nobody is listening, and current() captures on demand
+            flushPending.set(false);
+        }
+    }
+
+    /**
+     * The latest editor state. Lock-free after the first capture, so polling
+     * clients never wait on the EDT or contend with typing.
+     */
+    ContextSnapshot current() {
+        ContextSnapshot snapshot = current;
+        if (snapshot == null) {
+            // Nothing captured yet (startup): take the first snapshot synchronously
+            ApplicationManager.getApplication().invokeAndWait(this::capture, ModalityState.any());
+            snapshot = current;
+        }
+        return snapshot;
+    }
+
+    private ContextSnapshot capture() {
+        ContextSnapshot snapshot = ContextSnapshot.capture(project);
+        current = snapshot;
+        return snapshot;
+    }
+
+    /** Full {@code ide/contextUpdate} notification for a newly connected or resyncing client. */
+    synchronized JSONObject fullUpdate() {
+        if (last == null) {
+            last = current();
+        }
+        JSONObject params = new JSONObject();
+        params.put("seq", seq);
+        params.put("full", true);
+        params.put("openFiles", last.openFilesJson());
+        params.put("activeFile", last.activeFile == null ? JSONObject.NULL : "file://" + last.activeFile);
+        params.put("selection", last.selection == null ? JSONObject.NULL : last.selection.toJson());
+
+        // Add workspace state
+        JSONObject workspaceState = new JSONObject();
+        workspaceState.put("isTrusted", true);
+        params.put("workspaceState", workspaceState);
+        return notification(params);
+    }
+
+    private void flush() {
+        flushPending.set(false);
+        ApplicationManager.getApplication().invokeLater(Metrics.measureEdtWait(() -> {
+            ContextSnapshot snapshot = capture();
+            broadcaster.execute(() -> publish(snapshot));
+        }), ModalityState.any());
+    }
+
+    private void publish(ContextSnapshot snapshot) {
+        JSONObject params;
+        synchronized (this) {
+            JSONObject delta = snapshot.deltaFrom(last == null ? ContextSnapshot.EMPTY : last);
+            last = snapshot;
+            if (delta == null) {
+                return;
+            }
+            params = delta;
+            params.put("seq", ++seq);
+            params.put("full", false);
+        }
+        // A client still behind on an earlier delta gets one full update in its place
+        broadcaster.broadcast(notification(params).toString(), audience, "ide/contextUpdate",
+                () -> fullUpdate().toString());
+    }
+
+    private static JSONObject notification(JSONObject params) {
+        JSONObject notification = new JSONObject();
+        notification.put("jsonrpc", "2.0");
+        notification.put("method", "ide/contextUpdate");
+        notification.put("params", params);
+        return notification;
+    }
+}
@@ -0,0 +1,306 @@
+package com.unipath.cli.server;
+
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.codeInsight.daemon.impl.DaemonCodeAnalyzerEx;
+import com.intellij.codeInsight.daemon.impl.HighlightInfo;
+import com.intellij.lang.annotation.HighlightSeverity;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.problems.ProblemListener;
+import com.intellij.problems.WolfTheProblemSolver;
+import com.intellij.util.messages.MessageBusConnection;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * The errors and warnings the IDE's daemon already found in one project, so
+ * agents learn about a broken edit without running a build.
+ *
+ * Each time the daemon finishes with a set of editors, their highlights from
+ * weak warning up are copied out on the EDT, keyed by file and document
+ * modification stamp, and sent to the sessions bound to the project as
+ * {@code ide/diagnostics}, unless nothing changed since the last one for that
+ * file. A queued update is replaced by a newer one for the same file. The
+ * daemon only analyzes files open in an editor; for the rest, all we know is
+ * whether {@link WolfTheProblemSolver} has flagged them.
+ */
+final class Diagnostics {
+    static final String MAX_PER_FILE_PROPERTY = "unipath.diagnostics.maxPerFile";
+    static final String CACHE_SIZE_PROPERTY = "unipath.diagnostics.cacheSize";
+
+    static final int WEAK_WARNING = 1;
+    static final int WARNING = 2;
+    static final int ERROR = 3;
+    private static final String[] SEVERITIES = {null, "weak_warning", "warning", "error"};
+
+    private final SseBroadcaster broadcaster;
+    private final Project project;
+    private final Predicate<MCPSession> audience;
+    private final int maxPerFile;
+    private final int cacheSize;
+    /** Latest result per file, least recently used first; guarded by {@code this}. */
+    private final Map<String, Result> results = new LinkedHashMap<>(16, 0.75f, true);
+    /** Files the problem solver flagged; guarded by {@code this}. */
+    private final Set<String> problemFiles = new TreeSet<>();
+
+    /** One highlight, detached from the markup model. */
+    private static final class Problem {
+        final int severity;
+        final String message;
+        final String source;
+        final int start;
+        final int end;
+        final int line;
+        final int column;
+        final int endLine;
+        final int endColumn;
+
+        Problem(HighlightInfo info, Document document) {
+            HighlightSeverity severity = info.getSeverity();
+            this.severity = severity.compareTo(HighlightSeverity.ERROR) >= 0 ? ERROR
+                    : severity.compareTo(HighlightSeverity.WARNING) >= 0 ? WARNING : WEAK_WARNING;
+            this.message = info.getDescription();
+            this.source = info.getInspectionToolId();
+            this.start = Math.min(info.getStartOffset(), document.getTextLength());
+            this.end = Math.max(start, Math.min(info.getEndOffset(), document.getTextLength()));
+            this.line = document.getLineNumber(start);
+            this.column = start - document.getLineStartOffset(line);
+            this.endLine = document.getLineNumber(end);
+            this.endColumn = end - document.getLineStartOffset(endLine);
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("severity", SEVERITIES[severity])
+                    .put("message", message)
+                    .put("source", source)
+                    .put("start", start)
+                    .put("end", end)
+                    .put("line", line + 1)
+                    .put("column", column + 1)
+                    .put("endLine", endLine + 1)
+                    .put("endColumn", endColumn + 1);
+        }
+    }
+
+    /** What the daemon reported for one file at one document stamp. */
+    private static final class Result {
+        final String path;
+        final long stamp;
+        final List<Problem> problems;
+        final boolean truncated;
+        /** The {@code ide/diagnostics} params for every severity, serialized once. */
+        final String params;
+
+        Result(String path, long stamp, List<Problem> problems, boolean truncated) {
+            this.path = path;
+            this.stamp = stamp;
+            this.problems = problems;
+            this.truncated = truncated;
+            this.params = toJson(WEAK_WARNING).toString();
+        }
+
+        JSONObject toJson(int minSeverity) {
+            JSONArray diagnostics = new JSONArray();
+            int[] counts = new int[SEVERITIES.length];
+            for (Problem problem : problems) {
+                counts[problem.severity]++;
+                if (problem.severity >= minSeverity) {
+                    diagnostics.put(problem.toJson());
+                }
+            }
+            return summary(counts)
+                    .put("truncated", truncated)
+                    .put("diagnostics", diagnostics);
+        }
+
+        JSONObject summary() {
+            int[] counts = new int[SEVERITIES.length];
+            for (Problem problem : problems) {
+                counts[problem.severity]++;
+            }
+            return summary(counts);
+        }
+
+        private JSONObject summary(int[] counts) {
+            return new JSONObject()
+                    .put("path", path)
+                    .put("modificationStamp", stamp)
+                    .put("errors", counts[ERROR])
+                    .put("warnings", counts[WARNING])
+                    .put("weakWarnings", counts[WEAK_WARNING]);
+        }
+    }
+
+    Diagnostics(SseBroadcaster broadcaster, Project project, Predicate<MCPSession> audience) {
+        this.broadcaster = broadcaster;
+        this.project = project;
+        this.audience = audience;
+        this.maxPerFile = Integer.getInteger(MAX_PER_FILE_PROPERTY, 500);
+        this.cacheSize = Integer.getInteger(CACHE_SIZE_PROPERTY, 256);
+    }
+
+    /** The severity rank for {@code error}, {@code warning} or {@code weak_warning}. */
+    static int severity(String name) {
+        for (int i = 1; i < SEVERITIES.length; i++) {
+            if (SEVERITIES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown severity " + name + "; use error, warning or weak_warning");
+    }
+
+    void listen(Project project) {
+        MessageBusConnection connection = project.getMessageBus().connect(project);
+        connection.subscribe(DaemonCodeAnalyzer.DAEMON_EVENT_TOPIC, new DaemonCodeAnalyzer.DaemonListener() {
+            @Override
+            public void daemonFinished(@NotNull Collection<? extends FileEditor> fileEditors) {
+                analyzed(fileEditors);
+            }
+        });
+        connection.subscribe(ProblemListener.TOPIC, new ProblemListener() {
+            @Override
+            public void problemsAppeared(@NotNull VirtualFile file) {
+                synchronized (Diagnostics.this) {
+                    problemFiles.add(file.getPath());
+                }
+            }
+
+            @Override
+            public void problemsDisappeared(@NotNull VirtualFile file) {
+                synchronized (Diagnostics.this) {
+                    problemFiles.remove(file.getPath());
+                }
+            }
+        });
+    }
+
+    /** On the EDT: copy the highlights out while they match the document, publish off it. */
+    private void analyzed(Collection<? extends FileEditor> fileEditors) {
+        List<Result> captured = new ArrayList<>();
+        Set<VirtualFile> seen = new HashSet<>();
+        for (FileEditor editor : fileEditors) {
+            VirtualFile file = editor.getFile();
+            // Split editors show the same file twice
+            if (file == null || !seen.add(file)) {
+                continue;
+            }
+            Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+            if (document != null) {
+                captured.add(capture(file.getPath(), document));
+            }
+        }
+        if (!captured.isEmpty()) {
+            broadcaster.execute(() -> captured.forEach(this::publish));
+        }
+    }
+
+    private Result capture(String path, Document document) {
+        List<Problem> problems = new ArrayList<>();
+        boolean[] truncated = {false};
+        DaemonCodeAnalyzerEx.processHighlights(document, project, HighlightSeverity.WEAK_WARNING, 0,
+                document.getTextLength(), info -> {
+                    if (info.getDescription() == null) {
+                        return true;
+                    }
+                    if (problems.size() >= maxPerFile) {
+                        truncated[0] = true;
+                        return false;
+                    }
+                    problems.add(new Problem(info, document));
+                    return true;
+                });
+        problems.sort(Comparator.comparingInt((Problem problem) -> problem.start).thenComparingInt(problem -> -problem.severity));
+        return new Result(path, document.getModificationStamp(), problems, truncated[0]);
+    }
+
+    private void publish(Result result) {
+        synchronized (this) {
+            Result previous = results.put(result.path, result);
+            if (results.size() > cacheSize) {
+                results.remove(results.keySet().iterator().next());
+            }
+            notifyAll();
+            if (previous != null && previous.params.equals(result.params)) {
+                return;
+            }
+        }
+        JSONObject notification = new JSONObject();
+        notification.put("jsonrpc", "2.0");
+        notification.put("method", "ide/diagnostics");
+        notification.put("params", new JSONObject(result.params));
+        broadcaster.broadcast(notification.toString(), audience, "ide/diagnostics " + result.path, null);
+    }
+
+    /**
+     * The diagnostics of {@code path} from {@code minSeverity} up. If the file
+     * is open and the daemon hasn't caught up with its text yet, waits up to
+     * {@code waitMs} for it to.
+     */
+    JSONObject file(String path, int minSeverity, long waitMs, ProgressIndicator indicator) {
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+        if (file == null) {
+            throw new IllegalArgumentException("File not found: " + path);
+        }
+        Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+        long stamp = document == null ? -1 : document.getModificationStamp();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        Result result;
+        synchronized (this) {
+            while (true) {
+                result = results.get(path);
+                long left = deadline - System.nanoTime();
+                if (document == null || (result != null && result.stamp >= stamp) || left <= 0) {
+                    break;
+                }
+                indicator.checkCanceled();
+                try {
+                    wait(Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(left), 100)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        boolean problemFile = WolfTheProblemSolver.getInstance(project).isProblemFile(file);
+        if (result == null) {
+            return new JSONObject()
+                    .put("path", path)
+                    .put("analyzed", false)
+                    .put("reason", document == null ? "Not open in an editor" : "Not analyzed yet")
+                    .put("problemFile", problemFile);
+        }
+        long current = document == null ? stamp : document.getModificationStamp();
+        return result.toJson(minSeverity)
+                .put("analyzed", true)
+                .put("upToDate", result.stamp == current)
+                .put("problemFile", problemFile);
+    }
+
+    /** Counts for every file the daemon reported on, and the files flagged as having problems. */
+    synchronized JSONObject summary() {
+        JSONArray files = new JSONArray();
+        results.values().forEach(result -> files.put(result.summary()));
+        return new JSONObject()
+                .put("files", files)
+                .put("problemFiles", new JSONArray(problemFiles));
+    }
+}
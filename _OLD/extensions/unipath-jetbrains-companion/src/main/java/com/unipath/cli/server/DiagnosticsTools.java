@@ -0,0 +1,64 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import static com.unipath.cli.server.ToolProvider.property;
+import static com.unipath.cli.server.ToolProvider.tool;
+
+/** Errors and warnings from the IDE's running analysis, via {@link Diagnostics}. */
+final class DiagnosticsTools implements ToolProvider {
+    static final String GET_DIAGNOSTICS = "getDiagnostics";
+
+    private static final long MAX_WAIT_MS = 30000;
+
+    private final ProjectRegistry projects;
+
+    DiagnosticsTools(ProjectRegistry projects) {
+        this.projects = projects;
+    }
+
+    @Override
+    public void describe(JSONArray tools) {
+        tools.put(tool(GET_DIAGNOSTICS, "(IDE Tool) Errors and warnings the IDE has found in a file open in an editor, "
+                        + "with line ranges; without a path, the counts for every analyzed file. "
+                        + "Updates are also pushed as ide/diagnostics notifications",
+                new JSONObject()
+                        .put("path", property("string", "Absolute path, or relative to the project root"))
+                        .put("minSeverity", property("string", "error, warning or weak_warning; default warning"))
+                        .put("waitMs", property("integer", "How long to wait for analysis of the file's current "
+                                + "text, default 0"))));
+    }
+
+    @Override
+    public boolean provides(String toolName) {
+        return GET_DIAGNOSTICS.equals(toolName);
+    }
+
+    @Override
+    public JSONObject call(Project project, String toolName, JSONObject arguments, ProgressIndicator indicator) {
+        ProjectRegistry.Entry entry = project == null ? null : projects.find(project.getBasePath());
+        if (entry == null) {
+            return ToolProvider.errorResult("No active project");
+        }
+        String path = arguments.optString("path", null);
+        if (path == null || path.isEmpty()) {
+            try (Tracing.Span span = Tracing.span("diagnostics.summary")) {
+                return ToolProvider.jsonResult(entry.diagnostics.summary());
+            }
+        }
+        try (Tracing.Span span = Tracing.span("diagnostics.wait")) {
+            int minSeverity = Diagnostics.severity(arguments.optString("minSeverity", "warning"));
+            long waitMs = Math.max(0, Math.min(arguments.optLong("waitMs", 0), MAX_WAIT_MS));
+            return ToolProvider.jsonResult(entry.diagnostics.file(OutlineTools.resolve(project, path), minSeverity,
+                    waitMs, indicator));
+        } catch (ProcessCanceledException e) {
+            return ToolProvider.errorResult(toolName + " was cancelled");
+        } catch (IllegalArgumentException e) {
+            return ToolProvider.errorResult(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of file contents, keyed by path and versioned by
+ * modification stamp.
+ *
+ * Unsaved editor documents are served from the {@link Document} (so agents see
+ * what the user sees), everything else from disk. Each snapshot carries a
+ * content hash that doubles as the HTTP ETag.
+ */
+@Service(Service.Level.APP)
+public final class DocumentCache {
+    static final String MAX_BYTES_PROPERTY = "unipath.cache.maxBytes";
+    static final String MAX_ENTRY_BYTES_PROPERTY = "unipath.cache.maxEntryBytes";
+
+    static final class Snapshot {
+        final String path;
+        final String version;
+        final byte[] bytes;
+        final String hash;
+        final boolean unsaved;
+
+        Snapshot(String path, String version, byte[] bytes, boolean unsaved) {
+            this.path = path;
+            this.version = version;
+            this.bytes = bytes;
+            this.hash = hash(bytes);
+            this.unsaved = unsaved;
+        }
+
+        String etag() {
+            return "\"" + hash + "\"";
+        }
+    }
+
+    private final LinkedHashMap<String, Snapshot> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private long totalBytes;
+
+    public DocumentCache() {
+        this.maxBytes = Long.getLong(MAX_BYTES_PROPERTY, 64L * 1024 * 1024);
+        this.maxEntryBytes = Long.getLong(MAX_ENTRY_BYTES_PROPERTY, 4L * 1024 * 1024);
+    }
+
+    public static DocumentCache getInstance() {
+        return ApplicationManager.getApplication().getService(DocumentCache.class);
+    }
+
+    /**
+     * Returns the current contents of {@code file}, or {@code null} if it is
+     * too large to cache and has no unsaved document, in which case the caller
+     * should stream it from disk.
+     */
+    Snapshot lookup(File file) throws IOException {
+        String path = file.getPath();
+        VirtualFile vFile = LocalFileSystem.getInstance().findFileByPath(path);
+        if (vFile != null) {
+            // Non-blocking: a pending write action cancels and restarts this instead of waiting behind it
+            Snapshot fromDocument = ReadAction.nonBlocking(() -> lookupUnsavedDocument(path, vFile))
+                    .executeSynchronously();
+            if (fromDocument != null) {
+                return fromDocument;
+            }
+        }
+
+        long length = file.length();
+        if (length > maxEntryBytes) {
+            return null;
+        }
+        String version = "disk:" + (vFile != null ? vFile.getModificationStamp() : -1) + ":"
+                + file.lastModified() + ":" + length;
+        Snapshot cached = get(path, version);
+        if (cached != null) {
+            return cached;
+        }
+        return put(new Snapshot(path, version, Files.readAllBytes(file.toPath()), false));
+    }
+
+    /**
+     * The strong hash {@code /file} sends as the ETag of {@code file} right
+     * now: of the unsaved document text, else of the bytes on disk, so
+     * line separators, BOM and charset count.
+     */
+    String currentHash(File file) throws IOException {
+        Snapshot snapshot = lookup(file);
+        return snapshot != null ? snapshot.hash : hash(Files.readAllBytes(file.toPath()));
+    }
+
+    synchronized void invalidate(String path) {
+        Snapshot removed = entries.remove(path);
+        if (removed != null) {
+            totalBytes -= removed.bytes.length;
+        }
+    }
+
+    /** Weak validator for files served straight from disk without hashing. */
+    static String weakEtag(File file) {
+        return "W/\"" + file.lastModified() + "-" + file.length() + "\"";
+    }
+
+    private Snapshot lookupUnsavedDocument(String path, VirtualFile vFile) {
+        FileDocumentManager manager = FileDocumentManager.getInstance();
+        Document document = manager.getCachedDocument(vFile);
+        if (document == null || !manager.isDocumentUnsaved(document)) {
+            return null;
+        }
+        String version = "doc:" + document.getModificationStamp();
+        Snapshot cached = get(path, version);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] bytes = document.getImmutableCharSequence().toString().getBytes(StandardCharsets.UTF_8);
+        return put(new Snapshot(path, version, bytes, true));
+    }
+
+    private synchronized Snapshot get(String path, String version) {
+        Snapshot snapshot = entries.get(path);
+        return snapshot != null && snapshot.version.equals(version) ? snapshot : null;
+    }
+
+    private synchronized Snapshot put(Snapshot snapshot) {
+        if (snapshot.bytes.length > maxEntryBytes) {
+            return snapshot;
+        }
+        Snapshot previous = entries.put(snapshot.path, snapshot);
+        if (previous != null) {
+            totalBytes -= previous.bytes.length;
+        }
+        totalBytes += snapshot.bytes.length;
+
+        Iterator<Map.Entry<String, Snapshot>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().bytes.length;
+            eldest.remove();
+        }
+        return snapshot;
+    }
+
+    static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Applies edit requests straight to the IntelliJ {@link Document}.
+ *
+ * A request carries exactly one of {@code edits} (offset-based), {@code patch}
+ * (unified diff) or {@code content} (full text, reduced to the smallest single
+ * edit). Edits are computed off the EDT against a snapshot of the document and
+ * committed in one write command, so they form a single undo step; if the
+ * document changed in between we recompute. Files that don't exist yet are
+ * created on disk from {@code content} just before the document edits land,
+ * and deleted again if they don't; creating them is not part of the undo step.
+ *
+ * {@code baseHash} and the returned {@code hash} are the ETag {@code /file}
+ * serves for the file, so they cover its bytes on disk (line separators, BOM,
+ * charset) unless the document has unsaved changes. Edit offsets, on the
+ * other hand, count characters of the document text.
+ */
+final class DocumentEdits {
+    private static final int MAX_ATTEMPTS = 3;
+
+    private DocumentEdits() {
+    }
+
+    static final class Result {
+        final String path;
+        final String hash;
+        final int edits;
+        final int length;
+
+        Result(String path, String hash, int edits, int length) {
+            this.path = path;
+            this.hash = hash;
+            this.edits = edits;
+            this.length = length;
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("status", "ok");
+            json.put("path", path);
+            json.put("hash", hash);
+            json.put("edits", edits);
+            json.put("length", length);
+            return json;
+        }
+    }
+
+    /** One file's worth of edits within a batch. */
+    static final class Request {
+        final String path;
+        final JSONObject body;
+
+        Request(String path, JSONObject body) {
+            this.path = path;
+            this.body = body;
+        }
+    }
+
+    private static final class Prepared {
+        final Request request;
+        final Document document;
+        long stamp;
+        List<TextEdit> edits;
+        CharSequence after;
+
+        Prepared(Request request, Document document) {
+            this.request = request;
+            this.document = document;
+        }
+    }
+
+    /**
+     * Applies edits to several files in a single write command: either all of
+     * them validate and land together, or this throws and nothing is changed.
+     * New files are written first, so a failure to write one stops the batch
+     * before any document is touched; the ones already written are removed
+     * again when the batch fails. Commands with the same non-null
+     * {@code undoGroup} merge into one undo step. New files are added to
+     * {@code created} for the caller to {@link #refresh} in bulk.
+     */
+    static List<Result> applyAll(Project project, List<Request> requests, String undoGroup, Set<File> created)
+            throws PatchException, IOException {
+        List<Prepared> prepared = new ArrayList<>(requests.size());
+        Map<Request, Prepared> byRequest = new IdentityHashMap<>();
+        Set<String> paths = new HashSet<>();
+        try (Tracing.Span span = Tracing.span("edits.load")) {
+            for (Request request : requests) {
+                if (!paths.add(request.path)) {
+                    throw new PatchException("Combine edits for " + request.path + " into a single entry");
+                }
+                VirtualFile vFile = LocalFileSystem.getInstance().findFileByPath(request.path);
+                if (vFile == null) {
+                    vFile = LocalFileSystem.getInstance().refreshAndFindFileByPath(request.path);
+                }
+                if (vFile == null) {
+                    if (!request.body.has("content")) {
+                        throw new FileNotFoundException(request.path);
+                    }
+                    continue;
+                }
+                VirtualFile target = vFile;
+                Document document = ReadAction.nonBlocking(() -> FileDocumentManager.getInstance().getDocument(target))
+                        .executeSynchronously();
+                if (document == null) {
+                    throw new PatchException("Not a text file: " + request.path);
+                }
+                Prepared p = new Prepared(request, document);
+                prepared.add(p);
+                byRequest.put(request, p);
+            }
+        }
+
+        Map<Request, Result> newFiles = new IdentityHashMap<>();
+        List<Path> written = new ArrayList<>();
+        try {
+            try (Tracing.Span span = Tracing.span("edits.createFile")) {
+                for (Request request : requests) {
+                    if (!byRequest.containsKey(request)) {
+                        newFiles.put(request, createFile(request.path, request.body, written));
+                    }
+                }
+            }
+            if (!prepared.isEmpty()) {
+                commit(project, prepared, undoGroup);
+            }
+        } catch (PatchException | IOException | RuntimeException e) {
+            delete(written);
+            throw e;
+        }
+
+        List<Result> results = new ArrayList<>(requests.size());
+        for (Request request : requests) {
+            Prepared done = byRequest.get(request);
+            if (done != null) {
+                results.add(new Result(request.path, hashAfter(done), done.edits.size(), done.after.length()));
+            } else {
+                results.add(newFiles.get(request));
+                created.add(new File(request.path));
+            }
+        }
+        return results;
+    }
+
+    private static void commit(Project project, List<Prepared> prepared, String undoGroup)
+            throws PatchException, IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try (Tracing.Span span = Tracing.span("edits.compute")) {
+                for (Prepared p : prepared) {
+                    p.stamp = p.document.getModificationStamp();
+                    CharSequence before = p.document.getImmutableCharSequence();
+                    String baseHash = p.request.body.optString("baseHash", null);
+                    if (baseHash != null
+                            && !baseHash.equals(DocumentCache.getInstance().currentHash(new File(p.request.path)))) {
+                        throw new PatchException("Document changed since baseHash " + baseHash + ": " + p.request.path);
+                    }
+                    p.edits = TextEdit.validate(computeEdits(before, p.request.body), before.length());
+                }
+            }
+
+            AtomicBoolean committed = new AtomicBoolean();
+            ApplicationManager.getApplication().invokeAndWait(Metrics.measureEdtWait(() -> {
+                for (Prepared p : prepared) {
+                    if (p.document.getModificationStamp() != p.stamp) {
+                        return;
+                    }
+                }
+                try (Tracing.Span span = Tracing.span("edits.writeAction")) {
+                    WriteCommandAction.runWriteCommandAction(project, "UNIPATH: Apply Edits", undoGroup, () -> {
+                        for (Prepared p : prepared) {
+                            for (TextEdit edit : p.edits) {
+                                p.document.replaceString(edit.offset, edit.end(), edit.text);
+                            }
+                        }
+                    });
+                }
+                try (Tracing.Span span = Tracing.span("edits.save")) {
+                    for (Prepared p : prepared) {
+                        if (p.request.body.optBoolean("save", true)) {
+                            FileDocumentManager.getInstance().saveDocument(p.document);
+                        }
+                        p.after = p.document.getImmutableCharSequence();
+                    }
+                }
+                committed.set(true);
+            }));
+            if (committed.get()) {
+                return;
+            }
+        }
+        throw new PatchException("Documents kept changing while applying edits");
+    }
+
+    /**
+     * What {@code /file} serves now: the saved bytes, or the document text if
+     * left unsaved. The edits have landed, so failing to read the file back
+     * mustn't fail the request; then it's the hash of the text.
+     */
+    private static String hashAfter(Prepared done) {
+        DocumentCache.getInstance().invalidate(done.request.path);
+        try {
+            return DocumentCache.getInstance().currentHash(new File(done.request.path));
+        } catch (IOException e) {
+            return DocumentCache.hash(done.after.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static List<TextEdit> computeEdits(CharSequence text, JSONObject request) throws PatchException {
+        if (request.has("edits")) {
+            return TextEdit.fromJson(request.getJSONArray("edits"));
+        }
+        String patch = request.optString("patch", request.optString("diff", null));
+        if (patch != null) {
+            return UnifiedDiff.toEdits(text, patch);
+        }
+        if (request.has("content")) {
+            return List.of(TextEdit.replaceAll(text, request.getString("content")));
+        }
+        throw new PatchException("Request needs one of edits, patch or content");
+    }
+
+    /** Writes a new file, adding it and any directories made for it to {@code written}, outermost first. */
+    private static Result createFile(String path, JSONObject request, List<Path> written) throws IOException {
+        byte[] bytes = request.getString("content").getBytes(StandardCharsets.UTF_8);
+        Path file = new File(path).toPath();
+        List<Path> missing = new ArrayList<>();
+        for (Path dir = file.getParent(); dir != null && !Files.exists(dir); dir = dir.getParent()) {
+            missing.add(0, dir);
+        }
+        for (Path dir : missing) {
+            Files.createDirectory(dir);
+            written.add(dir);
+        }
+        // Only remove it on failure if it is ours; the VFS may have missed a file that is there
+        if (!Files.exists(file)) {
+            written.add(file);
+        }
+        Files.write(file, bytes);
+        return new Result(path, DocumentCache.hash(bytes), 1, request.getString("content").length());
+    }
+
+    /** Best effort: removes what {@link #createFile} wrote, innermost first. */
+    private static void delete(List<Path> written) {
+        for (int i = written.size() - 1; i >= 0; i--) {
+            try {
+                Files.deleteIfExists(written.get(i));
+            } catch (IOException e) {
+                // Left behind; a directory may have been filled by someone else meanwhile
+            }
+        }
+    }
+
+    /**
+     * Makes the VFS pick up files written straight to disk with one
+     * asynchronous refresh of their nearest known directories, instead of a
+     * synchronous refresh per file.
+     */
+    static void refresh(Collection<File> created) {
+        if (created.isEmpty()) {
+            return;
+        }
+        try (Tracing.Span span = Tracing.span("vfs.refresh")) {
+            refreshParents(created);
+        }
+    }
+
+    private static void refreshParents(Collection<File> created) {
+        Set<VirtualFile> parents = new LinkedHashSet<>();
+        Set<VirtualFile> ancestors = new LinkedHashSet<>();
+        for (File file : created) {
+            File dir = file.getParentFile();
+            VirtualFile parent = dir == null ? null : LocalFileSystem.getInstance().findFileByIoFile(dir);
+            if (parent != null) {
+                parents.add(parent);
+                continue;
+            }
+            // New directories too: refresh the nearest one the VFS knows, recursively
+            for (dir = dir == null ? null : dir.getParentFile(); dir != null; dir = dir.getParentFile()) {
+                VirtualFile ancestor = LocalFileSystem.getInstance().findFileByIoFile(dir);
+                if (ancestor != null) {
+                    ancestors.add(ancestor);
+                    break;
+                }
+            }
+        }
+        if (!parents.isEmpty()) {
+            VfsUtil.markDirtyAndRefresh(true, false, true, parents.toArray(VirtualFile.EMPTY_ARRAY));
+        }
+        if (!ancestors.isEmpty()) {
+            VfsUtil.markDirtyAndRefresh(true, true, true, ancestors.toArray(VirtualFile.EMPTY_ARRAY));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.unipath.cli.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Helpers for sending file contents without materialising the whole file on
+ * the heap: byte-range resolution and channel-to-stream transfer.
+ */
+final class FileTransfer {
+    private FileTransfer() {
+    }
+
+    /** A resolved, inclusive-exclusive byte window into a file of {@code size} bytes. */
+    static final class Range {
+        final long start;
+        final long length;
+        final long size;
+
+        Range(long start, long length, long size) {
+            this.start = start;
+            this.length = length;
+            this.size = size;
+        }
+
+        long end() {
+            return start + length;
+        }
+
+        boolean isWholeFile() {
+            return start == 0 && length == size;
+        }
+
+        String contentRange() {
+            return "bytes " + start + "-" + (length == 0 ? start : end() - 1) + "/" + size;
+        }
+    }
+
+    static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    /**
+     * Resolves the requested window from either an HTTP {@code Range} header
+     * (single range only) or {@code offset}/{@code length} query parameters.
+     * Returns {@code null} if the request is not satisfiable.
+     */
+    static Range resolve(String rangeHeader, String offsetParam, String lengthParam, long size) {
+        try {
+            if (rangeHeader != null && !rangeHeader.isEmpty()) {
+                return parseRangeHeader(rangeHeader.trim(), size);
+            }
+            long start = offsetParam == null ? 0 : Long.parseLong(offsetParam);
+            long length = lengthParam == null ? size - start : Long.parseLong(lengthParam);
+            if (start < 0 || length < 0 || start > size) {
+                return null;
+            }
+            return new Range(start, Math.min(length, size - start), size);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Range parseRangeHeader(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        if (first.isEmpty()) {
+            // Suffix range: the last N bytes
+            long suffix = Long.parseLong(last);
+            if (suffix <= 0) {
+                return null;
+            }
+            long length = Math.min(suffix, size);
+            return new Range(size - length, length, size);
+        }
+        long start = Long.parseLong(first);
+        long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+        if (start >= size || end < start) {
+            return null;
+        }
+        return new Range(start, end - start + 1, size);
+    }
+
+    /** Where file bytes come from: the file channel on disk or an in-memory snapshot. */
+    interface Source {
+        long size() throws IOException;
+
+        void writeTo(Range range, OutputStream os) throws IOException;
+
+        String read(Range range) throws IOException;
+
+        /** Writes the window as a quoted JSON string without materialising it. */
+        void writeJson(Range range, Writer out) throws IOException;
+    }
+
+    static Source of(FileChannel channel) {
+        return new Source() {
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public void writeTo(Range range, OutputStream os) throws IOException {
+                transfer(channel, range, os);
+            }
+
+            @Override
+            public String read(Range range) throws IOException {
+                return readWindow(channel, range);
+            }
+
+            @Override
+            public void writeJson(Range range, Writer out) throws IOException {
+                JsonStreams.writeQuoted(channel::read, range.start, range.length, out);
+            }
+        };
+    }
+
+    static Source of(byte[] bytes) {
+        return new Source() {
+            @Override
+            public long size() {
+                return bytes.length;
+            }
+
+            @Override
+            public void writeTo(Range range, OutputStream os) throws IOException {
+                os.write(bytes, (int) range.start, (int) range.length);
+            }
+
+            @Override
+            public String read(Range range) {
+                return new String(bytes, (int) range.start, (int) range.length, StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public void writeJson(Range range, Writer out) throws IOException {
+                JsonStreams.writeQuoted((target, position) -> {
+                    if (position >= bytes.length) {
+                        return -1;
+                    }
+                    int n = (int) Math.min(target.remaining(), bytes.length - position);
+                    target.put(bytes, (int) position, n);
+                    return n;
+                }, range.start, range.length, out);
+            }
+        };
+    }
+
+    /** Copies the window straight from the channel to the response stream. */
+    static void transfer(FileChannel channel, Range range, OutputStream os) throws IOException {
+        WritableByteChannel target = Channels.newChannel(os);
+        long position = range.start;
+        long remaining = range.length;
+        while (remaining > 0) {
+            long sent = channel.transferTo(position, remaining, target);
+            if (sent <= 0) {
+                break;
+            }
+            position += sent;
+            remaining -= sent;
+        }
+    }
+
+    /** Reads just the window into a string; used for the JSON response shape. */
+    static String readWindow(FileChannel channel, Range range) throws IOException {
+        if (range.length > Integer.MAX_VALUE) {
+            throw new IOException("Window too large for a JSON response: " + range.length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) range.length);
+        long position = range.start;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
@@ -0,0 +1,343 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.util.messages.MessageBusConnection;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * The layout of one project's workspace, versioned, so CLIs don't have to
+ * walk the disk at the start of every task.
+ *
+ * The first request builds the tree from {@link ProjectFileIndex}, so
+ * excluded and ignored directories stay out just as they do in the Project
+ * view; content roots outside the workspace directory are left out. After
+ * that, VFS events keep it current and go into a bounded change journal, one
+ * version per change. A client that holds version {@code n} asks for the
+ * changes since {@code n}; if the journal no longer reaches back that far, or
+ * the project's roots changed, it gets a full snapshot instead. Versions only
+ * mean something within one tree instance, which a restarted IDE or reopened
+ * project replaces, so every result carries the instance's {@code epoch} and
+ * a {@code since} from another epoch also gets a full snapshot.
+ *
+ * Changes arrive in write actions and the tree is built in a read action, so
+ * no change can slip in between the two.
+ */
+final class FileTree {
+    static final String JOURNAL_SIZE_PROPERTY = "unipath.tree.journalSize";
+
+    private final Project project;
+    private final String root;
+    private final int journalSize;
+    private final String epoch = UUID.randomUUID().toString();
+    /** Directory (relative, {@code ""} for the root) to the names of the files in it; {@code null} until first asked for. */
+    private TreeMap<String, TreeSet<String>> dirs;
+    private final ArrayDeque<Change> journal = new ArrayDeque<>();
+    private long version;
+    /** Clients at this version or later can catch up from the journal. */
+    private long base;
+    /** Serialized snapshot at {@link #snapshotVersion}, reused until the next change. */
+    private String snapshot;
+    private long snapshotVersion = -1;
+
+    private static final class Change {
+        final long version;
+        final boolean added;
+        final String path;
+        final boolean directory;
+
+        Change(long version, boolean added, String path, boolean directory) {
+            this.version = version;
+            this.added = added;
+            this.path = path;
+            this.directory = directory;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("version", version)
+                    .put("op", added ? "add" : "remove")
+                    .put("path", path)
+                    .put("dir", directory);
+        }
+    }
+
+    FileTree(Project project, String root) {
+        this.project = project;
+        this.root = root;
+        this.journalSize = Integer.getInteger(JOURNAL_SIZE_PROPERTY, 10000);
+    }
+
+    void listen(Project project) {
+        MessageBusConnection connection = project.getMessageBus().connect(project);
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void before(@NotNull List<? extends VFileEvent> events) {
+                // Removals are recorded while the files still exist, so we can ask the index about them
+                for (VFileEvent event : events) {
+                    if (event instanceof VFileDeleteEvent || event instanceof VFileMoveEvent
+                            || (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename())) {
+                        removed(event.getFile());
+                    }
+                }
+            }
+
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                for (VFileEvent event : events) {
+                    if (event instanceof VFileCreateEvent || event instanceof VFileMoveEvent
+                            || (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename())) {
+                        added(event.getFile());
+                    } else if (event instanceof VFileCopyEvent) {
+                        added(((VFileCopyEvent) event).findCreatedFile());
+                    }
+                }
+            }
+        });
+        connection.subscribe(ModuleRootListener.TOPIC, new ModuleRootListener() {
+            @Override
+            public void rootsChanged(@NotNull ModuleRootEvent event) {
+                reset();
+            }
+        });
+    }
+
+    /**
+     * The changes since {@code since} as JSON, or the whole tree if
+     * {@code since} is negative, comes from another {@code epoch}, or the
+     * journal can't bridge the gap.
+     */
+    String json(String epoch, long since, ProgressIndicator indicator) {
+        if (since >= 0 && this.epoch.equals(epoch)) {
+            synchronized (this) {
+                if (since >= base && since <= version) {
+                    return changesJson(since);
+                }
+            }
+        }
+        return ReadAction.nonBlocking(this::snapshotJson)
+                .wrapProgress(indicator)
+                .executeSynchronously();
+    }
+
+    private String changesJson(long since) {
+        JSONObject json = new JSONObject();
+        json.put("root", root);
+        json.put("full", false);
+        json.put("epoch", epoch);
+        json.put("since", since);
+        json.put("version", version);
+        List<JSONObject> changes = new ArrayList<>();
+        Iterator<Change> newestFirst = journal.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Change change = newestFirst.next();
+            if (change.version <= since) {
+                break;
+            }
+            changes.add(change.toJson());
+        }
+        Collections.reverse(changes);
+        json.put("changes", changes);
+        return json.toString();
+    }
+
+    /** Runs in a read action, so no VFS change can land while the tree is built. */
+    private String snapshotJson() {
+        TreeMap<String, TreeSet<String>> built;
+        synchronized (this) {
+            if (dirs != null && snapshotVersion == version) {
+                return snapshot;
+            }
+            built = dirs;
+        }
+        if (built == null) {
+            built = build();
+        }
+        synchronized (this) {
+            dirs = built;
+            snapshot = serialize(built);
+            snapshotVersion = version;
+            return snapshot;
+        }
+    }
+
+    private TreeMap<String, TreeSet<String>> build() {
+        TreeMap<String, TreeSet<String>> built = new TreeMap<>();
+        ProjectFileIndex.getInstance(project).iterateContent(file -> {
+            ProgressManager.checkCanceled();
+            String path = relative(file);
+            if (path != null) {
+                add(built, path, file.isDirectory());
+            }
+            return true;
+        });
+        return built;
+    }
+
+    private String serialize(TreeMap<String, TreeSet<String>> tree) {
+        // Sorted and hand-written: large trees are serialized once per version and compress well
+        StringBuilder out = new StringBuilder(64 + tree.size() * 48);
+        int files = 0;
+        out.append("{\"root\":").append(JSONObject.quote(root));
+        out.append(",\"full\":true,\"epoch\":").append(JSONObject.quote(epoch));
+        out.append(",\"version\":").append(version);
+        out.append(",\"dirs\":{");
+        boolean firstDir = true;
+        for (Map.Entry<String, TreeSet<String>> dir : tree.entrySet()) {
+            out.append(firstDir ? "" : ",").append(JSONObject.quote(dir.getKey())).append(":[");
+            firstDir = false;
+            boolean firstFile = true;
+            for (String name : dir.getValue()) {
+                out.append(firstFile ? "" : ",").append(JSONObject.quote(name));
+                firstFile = false;
+                files++;
+            }
+            out.append(']');
+        }
+        out.append("},\"dirCount\":").append(tree.size());
+        out.append(",\"fileCount\":").append(files).append('}');
+        return out.toString();
+    }
+
+    private void removed(VirtualFile file) {
+        if (file == null || !inContent(file)) {
+            return;
+        }
+        String path = relative(file);
+        if (path == null) {
+            return;
+        }
+        synchronized (this) {
+            record(new Change(version + 1, false, path, file.isDirectory()));
+            if (dirs != null) {
+                remove(dirs, path, file.isDirectory());
+            }
+        }
+    }
+
+    private void added(VirtualFile file) {
+        if (file == null || !inContent(file)) {
+            return;
+        }
+        if (!file.isDirectory()) {
+            added(file, false);
+            return;
+        }
+        // A directory moved in brings its contents along
+        ProjectFileIndex.getInstance(project).iterateContentUnderDirectory(file, child -> {
+            added(child, child.isDirectory());
+            return true;
+        });
+    }
+
+    private void added(VirtualFile file, boolean directory) {
+        String path = relative(file);
+        if (path == null) {
+            return;
+        }
+        synchronized (this) {
+            record(new Change(version + 1, true, path, directory));
+            if (dirs != null) {
+                add(dirs, path, directory);
+            }
+        }
+    }
+
+    /** Called with the monitor held. */
+    private void record(Change change) {
+        version = change.version;
+        journal.add(change);
+        while (journal.size() > journalSize) {
+            base = journal.removeFirst().version;
+        }
+    }
+
+    /** The roots or exclusions changed: rebuild on the next request, and make every client start over. */
+    private synchronized void reset() {
+        dirs = null;
+        snapshot = null;
+        journal.clear();
+        version++;
+        base = version;
+    }
+
+    private boolean inContent(VirtualFile file) {
+        return !project.isDisposed() && ProjectFileIndex.getInstance(project).isInContent(file);
+    }
+
+    /** Workspace-relative path with {@code /} separators, {@code ""} for the root, {@code null} if outside it. */
+    private String relative(VirtualFile file) {
+        String path = file.getPath();
+        if (path.equals(root)) {
+            return "";
+        }
+        return path.startsWith(root + "/") ? path.substring(root.length() + 1) : null;
+    }
+
+    private static void add(TreeMap<String, TreeSet<String>> tree, String path, boolean directory) {
+        if (directory) {
+            addDir(tree, path);
+            return;
+        }
+        int slash = path.lastIndexOf('/');
+        String dir = slash < 0 ? "" : path.substring(0, slash);
+        addDir(tree, dir).add(path.substring(slash + 1));
+    }
+
+    private static TreeSet<String> addDir(TreeMap<String, TreeSet<String>> tree, String dir) {
+        TreeSet<String> files = tree.get(dir);
+        if (files != null) {
+            return files;
+        }
+        files = new TreeSet<>();
+        tree.put(dir, files);
+        if (!dir.isEmpty()) {
+            int slash = dir.lastIndexOf('/');
+            addDir(tree, slash < 0 ? "" : dir.substring(0, slash));
+        }
+        return files;
+    }
+
+    private static void remove(TreeMap<String, TreeSet<String>> tree, String path, boolean directory) {
+        if (!directory) {
+            int slash = path.lastIndexOf('/');
+            TreeSet<String> files = tree.get(slash < 0 ? "" : path.substring(0, slash));
+            if (files != null) {
+                files.remove(path.substring(slash + 1));
+            }
+            return;
+        }
+        if (path.isEmpty()) {
+            tree.clear();
+            return;
+        }
+        tree.remove(path);
+        // Sorted keys: everything under "path/" sits in one contiguous range
+        tree.subMap(path + "/", path + "0").clear();
+    }
+}
@@ -0,0 +1,164 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the companion's HTTP handlers.
+ *
+ * The IDE runs on a JBR 21+ runtime, so handlers go to virtual threads when
+ * available. The plugin itself still targets Java 17, which is why the
+ * virtual-thread factory is looked up reflectively; on older runtimes we fall
+ * back to a small fixed pool instead of an unbounded cached one.
+ *
+ * Selected with {@code -Dunipath.server.executor=virtual|platform}. Servers
+ * use {@link #lazy} executors, which are only built when the first request
+ * arrives, so an IDE that no agent talks to never pays for them.
+ */
+public final class HandlerExecutors {
+    private static final Logger LOG = Logger.getInstance(HandlerExecutors.class);
+
+    static final String EXECUTOR_PROPERTY = "unipath.server.executor";
+    static final String PLATFORM_THREADS_PROPERTY = "unipath.server.platformThreads";
+
+    /** Runs the members of batches; see {@link #batch}. */
+    private static volatile Executor batch;
+
+    private HandlerExecutors() {
+    }
+
+    public static ExecutorService create(String name) {
+        String mode = System.getProperty(EXECUTOR_PROPERTY, "virtual");
+        if (!"platform".equals(mode)) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                LOG.info(name + " handlers run on virtual threads");
+                return virtual;
+            }
+        }
+        int threads = Integer.getInteger(PLATFORM_THREADS_PROPERTY,
+                Math.max(4, Runtime.getRuntime().availableProcessors()));
+        LOG.info(name + " handlers run on " + threads + " platform threads");
+        return newPlatformExecutor(name, threads);
+    }
+
+    /** An executor that is {@link #create}d on its first task. */
+    public static ExecutorService lazy(String name) {
+        return new LazyExecutor(name);
+    }
+
+    /**
+     * Where a handler runs the members of a batch it then waits for: a virtual
+     * thread each, or else the handler's own thread one after another, since
+     * waiting on the fixed platform pool from one of its threads can deadlock.
+     */
+    static Executor batch() {
+        Executor current = batch;
+        if (current == null) {
+            ExecutorService virtual = "platform".equals(System.getProperty(EXECUTOR_PROPERTY, "virtual"))
+                    ? null : newVirtualThreadExecutor();
+            current = virtual != null ? virtual : Runnable::run;
+            batch = current;
+        }
+        return current;
+    }
+
+    public static void shutdown(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+    }
+
+    private static final class LazyExecutor extends AbstractExecutorService {
+        private final String name;
+        /** Guarded by {@code this}. */
+        private ExecutorService delegate;
+        private boolean shutdown;
+
+        LazyExecutor(String name) {
+            this.name = name;
+        }
+
+        private synchronized ExecutorService delegate() {
+            if (shutdown) {
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            if (delegate == null) {
+                delegate = create(name);
+            }
+            return delegate;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            delegate().execute(task);
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+            if (delegate != null) {
+                delegate.shutdown();
+            }
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            shutdown = true;
+            return delegate == null ? List.of() : delegate.shutdownNow();
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && (delegate == null || delegate.isTerminated());
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            ExecutorService current;
+            synchronized (this) {
+                current = delegate;
+            }
+            return current == null ? isShutdown() : current.awaitTermination(timeout, unit);
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformExecutor(String name, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,285 @@
+package com.unipath.cli.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streaming JSON I/O for the HTTP handlers.
+ *
+ * Requests are parsed straight from the exchange body with a
+ * {@link JSONTokener}. Responses are serialized into a pooled buffer: small
+ * ones go out with a fixed Content-Length, and anything larger than the buffer
+ * switches to chunked transfer, so big payloads never exist as one String or
+ * byte[]. Both directions go through {@link Compression} when the client asks
+ * for it.
+ */
+final class JsonStreams {
+    static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private JsonStreams() {
+    }
+
+    /** Source of raw bytes for {@link #writeQuoted}; mirrors {@code FileChannel.read(ByteBuffer, long)}. */
+    interface ByteSource {
+        int read(ByteBuffer target, long position) throws IOException;
+    }
+
+    /** Parses the request body as a JSON object or array. */
+    static Object read(HttpExchange exchange) throws IOException {
+        // Parsing streams from the socket, so reading and parsing are one stage
+        try (Tracing.Span span = Tracing.span("request.read");
+             Reader reader = new InputStreamReader(Compression.requestBody(exchange), StandardCharsets.UTF_8)) {
+            Object value = new JSONTokener(reader).nextValue();
+            if (!(value instanceof JSONObject) && !(value instanceof JSONArray)) {
+                throw new JSONException("Request body must be a JSON object or array");
+            }
+            return value;
+        }
+    }
+
+    static JSONObject readObject(HttpExchange exchange) throws IOException {
+        Object value = read(exchange);
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Request body must be a JSON object");
+        }
+        return (JSONObject) value;
+    }
+
+    /** Opens a UTF-8 writer for the response body; headers are sent when it spills or closes. */
+    static Writer openWriter(HttpExchange exchange, int code) {
+        return new OutputStreamWriter(new ResponseStream(exchange, code), StandardCharsets.UTF_8);
+    }
+
+    static void write(HttpExchange exchange, int code, Object json) throws IOException {
+        try (Tracing.Span span = Tracing.span("response.write");
+             Writer writer = openWriter(exchange, code)) {
+            if (json instanceof JSONObject) {
+                ((JSONObject) json).write(writer);
+            } else if (json instanceof JSONArray) {
+                ((JSONArray) json).write(writer);
+            } else {
+                writer.write(String.valueOf(json));
+            }
+        }
+    }
+
+    /**
+     * Writes {@code length} UTF-8 bytes starting at {@code position} as a quoted
+     * JSON string, decoding and escaping one buffer at a time.
+     */
+    static void writeQuoted(ByteSource source, long position, long length, Writer out) throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        byte[] array = acquire();
+        try {
+            ByteBuffer in = ByteBuffer.wrap(array);
+            CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+            long remaining = length;
+            out.write('"');
+            while (true) {
+                while (remaining > 0 && in.hasRemaining()) {
+                    int limit = in.limit();
+                    in.limit(in.position() + (int) Math.min(in.remaining(), remaining));
+                    int read = source.read(in, position);
+                    in.limit(limit);
+                    if (read < 0) {
+                        remaining = 0;
+                    }
+                    if (read <= 0) {
+                        break;
+                    }
+                    position += read;
+                    remaining -= read;
+                }
+
+                boolean eof = remaining <= 0;
+                in.flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(in, chars, eof);
+                    chars.flip();
+                    escape(chars, out);
+                    chars.clear();
+                } while (result.isOverflow());
+                in.compact();
+
+                if (eof) {
+                    decoder.flush(chars);
+                    chars.flip();
+                    escape(chars, out);
+                    break;
+                }
+            }
+            out.write('"');
+        } finally {
+            release(array);
+        }
+    }
+
+    private static void escape(CharBuffer chars, Writer out) throws IOException {
+        while (chars.hasRemaining()) {
+            char c = chars.get();
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+    }
+
+    static byte[] acquire() {
+        byte[] buffer = POOL.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return buffer;
+    }
+
+    static void release(byte[] buffer) {
+        if (buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        if (POOLED.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            POOL.offer(buffer);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    /**
+     * Buffers the response; sends a fixed Content-Length if everything fits in
+     * one buffer, otherwise switches to chunked transfer on the first spill.
+     * Responses past the compression threshold are encoded if the client
+     * accepts it.
+     */
+    private static final class ResponseStream extends OutputStream {
+        private final HttpExchange exchange;
+        private final int code;
+        private byte[] buffer = acquire();
+        private int count;
+        private OutputStream body;
+
+        ResponseStream(HttpExchange exchange, int code) {
+            this.exchange = exchange;
+            this.code = code;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                spill();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    spill();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Only once we're already chunked; flushing earlier would give up Content-Length
+            if (body != null) {
+                spill();
+                body.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            try {
+                if (body == null) {
+                    open(false);
+                }
+                body.write(buffer, 0, count);
+                body.close();
+            } finally {
+                release(buffer);
+                buffer = null;
+            }
+        }
+
+        private void spill() throws IOException {
+            if (body == null) {
+                open(true);
+            }
+            body.write(buffer, 0, count);
+            count = 0;
+        }
+
+        private void open(boolean spilled) throws IOException {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            String encoding = spilled || count >= Compression.MIN_BYTES ? Compression.negotiate(exchange) : null;
+            if (encoding != null) {
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+                exchange.sendResponseHeaders(code, 0);
+                body = Compression.compress(exchange.getResponseBody(), encoding);
+            } else {
+                exchange.sendResponseHeaders(code, spilled ? 0 : count == 0 ? -1 : count);
+                body = exchange.getResponseBody();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.unipath.cli.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, HDR style: every power
+ * of two from 16 microseconds to ~67s is split into two sub-buckets, so the
+ * relative error stays under 50% at every scale while the bucket count stays
+ * small enough to export as a Prometheus histogram.
+ */
+final class LatencyHistogram {
+    private static final long[] BOUNDS_NANOS = bounds(16_000L, 22);
+
+    private final LongAdder[] counts = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    private static long[] bounds(long firstNanos, int powers) {
+        long[] bounds = new long[powers * 2];
+        long base = firstNanos;
+        for (int i = 0; i < powers; i++) {
+            bounds[2 * i] = base + base / 2;
+            bounds[2 * i + 1] = base * 2;
+            base *= 2;
+        }
+        return bounds;
+    }
+
+    void record(long nanos) {
+        int index = Arrays.binarySearch(BOUNDS_NANOS, Math.max(0, nanos));
+        counts[index >= 0 ? index : -index - 1].increment();
+        sumNanos.add(Math.max(0, nanos));
+    }
+
+    long count() {
+        long total = 0;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /** Writes cumulative {@code _bucket}, {@code _sum} and {@code _count} samples in seconds. */
+    void writeTo(Writer out, String name, String labels) throws IOException {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+            cumulative += counts[i].sum();
+            out.write(name + "_bucket" + prefix + "le=\"" + seconds(BOUNDS_NANOS[i]) + "\"} " + cumulative + "\n");
+        }
+        cumulative += counts[BOUNDS_NANOS.length].sum();
+        out.write(name + "_bucket" + prefix + "le=\"+Inf\"} " + cumulative + "\n");
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.write(name + "_sum" + suffix + " " + seconds(sumNanos.sum()) + "\n");
+        out.write(name + "_count" + suffix + " " + cumulative + "\n");
+    }
+
+    static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+}
@@ -11,40 +11,77 @@ import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.Headers;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONTokener;
 
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Map;
+import java.net.BindException;
+import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import static com.unipath.cli.server.ConcurrencyLimitedHandler.limit;
+import static com.unipath.cli.server.Metrics.instrument;
+
 @Service(Service.Level.APP)
 public final class MCPServer implements Disposable {
     private static final Logger LOG = Logger.getInstance(MCPServer.class);
-    private static final int PORT = 62325;
+    static final String PORT_PROPERTY = "unipath.mcp.port";
+    private static final String TOOL_TIMEOUT_PROPERTY = "unipath.tools.timeoutMs";
+    /** Path of the Unix domain socket, or {@code none} to listen on TCP only. */
+    static final String SOCKET_PROPERTY = "unipath.mcp.socket";
+    /** Loopback port of the WebSocket listener; it takes any free port when this one is busy. */
+    static final String WS_PORT_PROPERTY = "unipath.mcp.wsPort";
+    private static final int DEFAULT_WS_PORT = 62326;
+    /** Methods we report metrics for by name; anything else is counted as "other". */
+    private static final Set<String> KNOWN_METHODS = Set.of(
+            "initialize", "tools/list", "tools/call", "ide/getContext", "ide/getOperation", "ping",
+            "notifications/cancelled");
     private HttpServer server;
+    private ChannelServer unixServer;
+    private ChannelServer wsServer;
+    private ExecutorService executor;
     private static MCPServer instance;
-    private final Map<String, MCPSession> sessions = new ConcurrentHashMap<>();
-    private Timer keepAliveTimer;
+    private final SseBroadcaster broadcaster = new SseBroadcaster();
+    private final ProjectRegistry projects = new ProjectRegistry(broadcaster);
+    private final Operations operations = new Operations(broadcaster);
+    private final WriteScheduler writes = new WriteScheduler();
+    private final List<ToolProvider> toolProviders = List.of(new SearchTools(), new OutlineTools(projects),
+            new TreeTools(projects), new DiagnosticsTools(projects));
+    private final AtomicBoolean started = new AtomicBoolean();
+    /** Guarded by {@code this}, as is starting the listeners. */
+    private boolean disposed;
 
     public MCPServer() {
         instance = this;
-        startServer();
-        writePortFile();
-        startKeepAlive();
+        Metrics.gauge("unipath_sse_sessions", "Open MCP SSE sessions.", broadcaster::size);
+        Metrics.gauge("unipath_sse_session_queued", "Messages waiting to be written, per MCP session.", "session",
+                () -> broadcaster.perSession(MCPSession::queued));
+        Metrics.gauge("unipath_sse_session_lag_ms", "Age of the oldest unwritten message, per MCP session.", "session",
+                () -> broadcaster.perSession(session -> TimeUnit.NANOSECONDS.toMillis(session.lagNanos())));
+        Metrics.gauge("unipath_sse_session_coalesced", "Queued notifications replaced by newer ones, per MCP session.",
+                "session", () -> broadcaster.perSession(MCPSession::coalesced));
+        Metrics.gauge("unipath_sse_sessions_dropped", "MCP sessions dropped for falling behind.", broadcaster::dropped);
     }
 
     public static MCPServer getInstance() {
@@ -54,19 +91,71 @@ public final class MCPServer implements Disposable {
         return instance;
     }
 
+    /** Open projects and their editor state, shared with the legacy HTTP endpoints. */
+    ProjectRegistry projects() {
+        return projects;
+    }
+
+    /** Pending and recently finished write operations, shared with the legacy HTTP endpoints. */
+    Operations operations() {
+        return operations;
+    }
+
+    /** Coalesces edits from both servers so bursts share write commands and VFS refreshes. */
+    WriteScheduler writes() {
+        return writes;
+    }
+
+    public void trackProject(Project project) {
+        projects.register(project);
+    }
+
+    /**
+     * Starts both servers on a pooled thread, so opening a project never waits
+     * on sockets or the port file; handler threads are only created by the
+     * first request. Every project that opens calls this, and only the first
+     * call does anything.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            LOG.debug("MCP server already started");
+            return;
+        }
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            synchronized (this) {
+                if (disposed) {
+                    return;
+                }
+                broadcaster.start();
+                writes.start();
+                startServer();
+                writePortFile();
+            }
+            // Binding in this order keeps the usual port for the MCP server when both are configured to use it
+            UnipathServer.getInstance().start();
+        });
+    }
+
     private void writePortFile() {
         try {
             String tmpDir = System.getProperty("java.io.tmpdir");
             String ppid = getParentProcessId();
-            if (ppid != null) {
+            if (ppid != null && server != null) {
                 Path portFile = Paths.get(tmpDir, "gemini-ide-server-" + ppid + ".json");
                 JSONObject config = new JSONObject();
-                config.put("port", PORT);
+                config.put("port", server.getAddress().getPort());
+                config.put("registry", projects.file().toString());
+                if (unixServer != null) {
+                    config.put("socketPath", unixSocketPath().toString());
+                }
+                if (wsServer != null) {
+                    config.put("wsPort", wsServer.getPort());
+                }
                 
                 // Get workspace path from the first open project
-                Project[] projects = ProjectManager.getInstance().getOpenProjects();
-                if (projects.length > 0) {
-                    String basePath = projects[0].getBasePath();
+                Project[] openProjects = ProjectManager.getInstance().getOpenProjects();
+                if (openProjects.length > 0) {
+                    String basePath = openProjects[0].getBasePath();
                     if (basePath != null) {
                         config.put("workspacePath", basePath);
                     }
@@ -95,50 +184,112 @@ public final class MCPServer implements Disposable {
         }
     }
 
-    private void startKeepAlive() {
-        keepAliveTimer = new Timer(true);
-        keepAliveTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                sessions.forEach((id, session) -> {
-                    try {
-                        session.sendPing();
-                    } catch (Exception e) {
-                        LOG.debug("Failed to send ping to session " + id);
-                        sessions.remove(id);
-                    }
-                });
-            }
-        }, 60000, 60000); // Every 60 seconds
-    }
-
     private void startServer() {
         try {
-            server = HttpServer.create(new InetSocketAddress(PORT), 0);
-            server.setExecutor(Executors.newCachedThreadPool());
+            server = ServerPorts.bind(PORT_PROPERTY);
+            executor = HandlerExecutors.lazy("unipath-mcp");
+            server.setExecutor(executor);
             
-            // MCP endpoint
-            server.createContext("/mcp", new MCPHandler());
+            // MCP endpoint; all transports share one concurrency limit
+            MCPHandler handler = new MCPHandler();
+            HttpHandler mcpHandler = limit(handler);
+            HttpHandler wsHandler = new WebSocketHandler(handler);
+            instrument(server.createContext("/mcp", mcpHandler), "mcp");
             
             // Legacy endpoints for compatibility
             server.createContext("/health", new HealthHandler());
+            server.createContext("/metrics", Metrics.handler());
+            server.createContext("/traces", Tracing.handler());
             
             server.start();
-            LOG.info("UNIPATH MCP Server started on port " + PORT);
+            LOG.info("UNIPATH MCP Server started on port " + server.getAddress().getPort());
+            projects.endpoint("mcpPort", server.getAddress().getPort());
+            startUnixServer(mcpHandler, wsHandler);
+            startWebSocketServer(mcpHandler, wsHandler);
         } catch (IOException e) {
             LOG.error("Failed to start MCP server", e);
         }
     }
 
+    private Path unixSocketPath() {
+        String socket = System.getProperty(SOCKET_PROPERTY);
+        return socket != null ? Paths.get(socket)
+                : Paths.get(System.getProperty("java.io.tmpdir"), "unipath-mcp-" + ProcessHandle.current().pid() + ".sock");
+    }
+
+    private void startUnixServer(HttpHandler mcpHandler, HttpHandler wsHandler) {
+        if ("none".equals(System.getProperty(SOCKET_PROPERTY))) {
+            return;
+        }
+        Path path = unixSocketPath();
+        ChannelServer uds = ChannelServer.unix(path, executor);
+        uds.createContext("/mcp", mcpHandler, Metrics.filter("mcp-uds", "/mcp"));
+        uds.createContext("/mcp/ws", wsHandler, Metrics.filter("mcp-uds", "/mcp/ws"));
+        uds.createContext("/health", new HealthHandler());
+        uds.createContext("/metrics", Metrics.handler());
+        uds.createContext("/traces", Tracing.handler());
+        try {
+            uds.start();
+            unixServer = uds;
+            projects.endpoint("socketPath", path.toString());
+            LOG.info("UNIPATH MCP Server listening on " + path);
+        } catch (IOException | UnsupportedOperationException e) {
+            // TCP keeps working; older Windows builds have no AF_UNIX support
+            LOG.warn("Could not listen on " + path, e);
+        }
+    }
+
+    /**
+     * Loopback listener for WebSocket clients on TCP. {@code com.sun.net.httpserver}
+     * can't hand a connection over to another protocol, so this runs on a
+     * {@link ChannelServer} next to the main server.
+     */
+    private void startWebSocketServer(HttpHandler mcpHandler, HttpHandler wsHandler) {
+        int preferred = Integer.getInteger(WS_PORT_PROPERTY, DEFAULT_WS_PORT);
+        try {
+            ChannelServer ws;
+            try {
+                ws = createWebSocketServer(preferred, mcpHandler, wsHandler);
+            } catch (BindException e) {
+                ws = createWebSocketServer(0, mcpHandler, wsHandler);
+                LOG.info("Port " + preferred + " is taken, using " + ws.getPort());
+            }
+            wsServer = ws;
+            projects.endpoint("wsPort", ws.getPort());
+            LOG.info("UNIPATH MCP WebSocket listening on port " + ws.getPort());
+        } catch (IOException e) {
+            LOG.warn("Could not start the WebSocket listener", e);
+        }
+    }
+
+    private ChannelServer createWebSocketServer(int port, HttpHandler mcpHandler, HttpHandler wsHandler) throws IOException {
+        ChannelServer ws = ChannelServer.tcp(port, executor);
+        ws.createContext("/mcp", mcpHandler, Metrics.filter("mcp-ws", "/mcp"));
+        ws.createContext("/mcp/ws", wsHandler, Metrics.filter("mcp-ws", "/mcp/ws"));
+        ws.createContext("/health", new HealthHandler());
+        ws.createContext("/metrics", Metrics.handler());
+        ws.createContext("/traces", Tracing.handler());
+        ws.start();
+        return ws;
+    }
+
     @Override
-    public void dispose() {
-        if (keepAliveTimer != null) {
-            keepAliveTimer.cancel();
+    public synchronized void dispose() {
+        disposed = true;
+        writes.stop();
+        broadcaster.stop();
+        if (unixServer != null) {
+            unixServer.stop();
+        }
+        if (wsServer != null) {
+            wsServer.stop();
         }
         if (server != null) {
             server.stop(0);
             LOG.info("UNIPATH MCP Server stopped");
         }
+        projects.delete();
+        HandlerExecutors.shutdown(executor);
     }
 
     private class MCPHandler implements HttpHandler {
@@ -159,8 +310,17 @@ public final class MCPServer implements Disposable {
             }
 
             String sessionId = exchange.getRequestHeaders().getFirst("mcp-session-id");
-            String body = readRequestBody(exchange);
-            JSONObject request = new JSONObject(body);
+            Object body = JsonStreams.read(exchange);
+            if (body instanceof JSONArray) {
+                MCPSession session = broadcaster.get(sessionId);
+                if (session == null) {
+                    sendError(exchange, 400, -32000, "Invalid or missing session ID");
+                    return;
+                }
+                handleBatch(exchange, session, (JSONArray) body);
+                return;
+            }
+            JSONObject request = (JSONObject) body;
 
             // Check if this is an initialize request
             if (isInitializeRequest(request)) {
@@ -169,67 +329,45 @@ public final class MCPServer implements Disposable {
                     return;
                 }
                 
-                // Create new session
-                final String finalSessionId = UUID.randomUUID().toString();
-                MCPSession session = new MCPSession(finalSessionId);
-                sessions.put(finalSessionId, session);
-                
-                // Create a thread to handle SSE connection
-                Thread sseThread = new Thread(() -> {
-                    try {
-                        // Send initialize response with SSE headers
-                        Headers headers = exchange.getResponseHeaders();
-                        headers.set("Content-Type", "text/event-stream");
-                        headers.set("Cache-Control", "no-cache");
-                        headers.set("Connection", "keep-alive");
-                        headers.set("Access-Control-Allow-Origin", "*");
-                        headers.set("mcp-session-id", finalSessionId);
-                        
-                        JSONObject response = createInitializeResponse(request);
-                        String sseData = "data: " + response.toString() + "\n\n";
-                        
-                        exchange.sendResponseHeaders(200, 0);
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(sseData.getBytes(StandardCharsets.UTF_8));
-                        os.flush();
-                        
-                        // Send initial context update
-                        session.sendContextUpdate(os);
-                        
-                        // Keep connection open for SSE
-                        session.setOutputStream(os);
-                        
-                        LOG.info("MCP session initialized: " + finalSessionId);
-                        
-                        // Keep the connection alive
-                        while (sessions.containsKey(finalSessionId)) {
-                            Thread.sleep(30000); // Sleep for 30 seconds
-                            if (sessions.containsKey(finalSessionId)) {
-                                session.sendPing();
-                            }
-                        }
-                    } catch (Exception e) {
-                        LOG.error("SSE connection error", e);
-                        sessions.remove(finalSessionId);
-                    } finally {
-                        try {
-                            exchange.getResponseBody().close();
-                        } catch (IOException e) {
-                            // Ignore
-                        }
-                    }
-                });
-                sseThread.setDaemon(true);
-                sseThread.start();
+                // Create new session; its SSE stream stays open after this handler returns
+                MCPSession session = newSession(request);
+                if (session == null) {
+                    sendError(exchange, 404, -32602, "No open project contains " + workspacePath(request));
+                    return;
+                }
+
+                try {
+                    // Send initialize response with SSE headers
+                    Headers headers = exchange.getResponseHeaders();
+                    headers.set("Content-Type", "text/event-stream");
+                    headers.set("Cache-Control", "no-cache");
+                    headers.set("Connection", "keep-alive");
+                    headers.set("Access-Control-Allow-Origin", "*");
+                    headers.set("mcp-session-id", session.getId());
+
+                    exchange.sendResponseHeaders(200, 0);
+                    session.attach(exchange, exchange.getResponseBody());
+                    session.send(createInitializeResponse(request, projects.entryFor(session)).toString());
+
+                    // Send initial context update; later changes arrive as deltas
+                    session.send(projects.trackerFor(session).fullUpdate().toString());
+                    // Only now can broadcasts reach it, so none overtakes the initialize response
+                    broadcaster.register(session);
+
+                    LOG.info("MCP session initialized: " + session.getId());
+                } catch (IOException e) {
+                    LOG.warn("SSE connection error", e);
+                    broadcaster.remove(session);
+                }
                 return;
             } else {
                 // Handle other requests
-                if (sessionId == null || !sessions.containsKey(sessionId)) {
+                MCPSession session = broadcaster.get(sessionId);
+                if (session == null) {
                     sendError(exchange, 400, -32000, "Invalid or missing session ID");
                     return;
                 }
-                
-                MCPSession session = sessions.get(sessionId);
+
                 handleRequest(exchange, session, request);
             }
         }
@@ -238,7 +376,29 @@ public final class MCPServer implements Disposable {
             return "initialize".equals(request.optString("method"));
         }
 
-        private JSONObject createInitializeResponse(JSONObject request) {
+        /**
+         * A session bound to the project containing the client's {@code workspacePath},
+         * or to the default project if it names none; {@code null} if no open project contains it.
+         */
+        private MCPSession newSession(JSONObject initialize) {
+            String workspace = workspacePath(initialize);
+            ProjectRegistry.Entry project = workspace == null ? null : projects.forFile(workspace);
+            if (workspace != null && project == null) {
+                return null;
+            }
+            MCPSession session = new MCPSession(UUID.randomUUID().toString());
+            if (project != null) {
+                session.bind(project.workspacePath);
+            }
+            return session;
+        }
+
+        private String workspacePath(JSONObject initialize) {
+            JSONObject params = initialize.optJSONObject("params");
+            return params == null ? null : params.optString("workspacePath", null);
+        }
+
+        private JSONObject createInitializeResponse(JSONObject request, ProjectRegistry.Entry project) {
             JSONObject response = new JSONObject();
             response.put("jsonrpc", "2.0");
             response.put("id", request.get("id"));
@@ -259,13 +419,109 @@ public final class MCPServer implements Disposable {
             capabilities.put("tools", tools);
             
             result.put("capabilities", capabilities);
+            if (project != null) {
+                result.put("workspace", new JSONObject()
+                        .put("name", project.project.getName())
+                        .put("workspacePath", project.workspacePath));
+            }
             response.put("result", result);
             
             return response;
         }
 
         private void handleRequest(HttpExchange exchange, MCPSession session, JSONObject request) throws IOException {
+            JSONObject response = dispatch(session, request);
+            if (response == null) {
+                // Pings and notifications don't need a response
+                exchange.sendResponseHeaders(200, 0);
+                exchange.getResponseBody().close();
+                return;
+            }
+            sendResponse(exchange, response.has("error") ? 400 : 200, response);
+        }
+
+        /**
+         * JSON-RPC batch: members run concurrently and the responses come back
+         * in request order; notifications produce no entry.
+         */
+        private void handleBatch(HttpExchange exchange, MCPSession session, JSONArray batch) throws IOException {
+            if (batch.isEmpty()) {
+                sendError(exchange, 400, -32600, "Empty batch");
+                return;
+            }
+            JSONArray responses = batchResponses(session, batch);
+            if (responses.isEmpty()) {
+                exchange.sendResponseHeaders(202, -1);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, 200, responses);
+        }
+
+        /** The responses to a non-empty batch, in request order. */
+        private JSONArray batchResponses(MCPSession session, JSONArray batch) {
+            List<CompletableFuture<JSONObject>> pending = new ArrayList<>(batch.length());
+            for (int i = 0; i < batch.length(); i++) {
+                JSONObject request = batch.optJSONObject(i);
+                if (!isValidRequest(request)) {
+                    Object id = request == null ? JSONObject.NULL : request.opt("id");
+                    pending.add(CompletableFuture.completedFuture(
+                            errorResponse(id == null ? JSONObject.NULL : id, -32600, "Invalid request")));
+                } else if (isInitializeRequest(request)) {
+                    pending.add(CompletableFuture.completedFuture(
+                            errorResponse(request.opt("id"), -32600, "initialize cannot be batched")));
+                } else {
+                    pending.add(CompletableFuture.supplyAsync(Tracing.wrap(() -> dispatchSafely(session, request)),
+                            HandlerExecutors.batch()));
+                }
+            }
+
+            JSONArray responses = new JSONArray();
+            for (int i = 0; i < pending.size(); i++) {
+                JSONObject request = batch.optJSONObject(i);
+                JSONObject response = pending.get(i).join();
+                if (response == null) {
+                    // Pings with an id still get an (empty) result inside a batch
+                    if (request.has("id")) {
+                        responses.put(new JSONObject().put("jsonrpc", "2.0").put("id", request.get("id"))
+                                .put("result", new JSONObject()));
+                    }
+                } else if (!isValidRequest(request) || request.has("id")) {
+                    // A notification gets no reply, even if it failed; only an invalid member can't be told apart from one
+                    responses.put(response);
+                }
+            }
+            return responses;
+        }
+
+        private static boolean isValidRequest(JSONObject request) {
+            return request != null && request.opt("method") instanceof String;
+        }
+
+        private JSONObject dispatchSafely(MCPSession session, JSONObject request) {
+            try {
+                return dispatch(session, request);
+            } catch (RuntimeException e) {
+                LOG.warn("MCP request failed: " + request.optString("method"), e);
+                return errorResponse(request.opt("id"), -32603, "Internal error: " + e.getMessage());
+            }
+        }
+
+        /** Returns the response for {@code request}, or {@code null} for a ping or notification. */
+        private JSONObject dispatch(MCPSession session, JSONObject request) {
             String method = request.optString("method");
+            Metrics.Timer timer = Metrics.start("mcp", KNOWN_METHODS.contains(method) ? method : "other");
+            boolean failed = true;
+            try (Tracing.Span span = Tracing.span("mcp " + (KNOWN_METHODS.contains(method) ? method : "other"))) {
+                JSONObject response = route(session, request, method);
+                failed = response != null && response.has("error");
+                return response;
+            } finally {
+                timer.stop(failed);
+            }
+        }
+
+        private JSONObject route(MCPSession session, JSONObject request, String method) {
             
             JSONObject response = new JSONObject();
             response.put("jsonrpc", "2.0");
@@ -275,71 +531,100 @@ public final class MCPServer implements Disposable {
             
             switch (method) {
                 case "tools/list":
-                    response.put("result", getToolsList());
+                    response.put("result", describeTools(toolProviders));
                     break;
                     
                 case "tools/call":
                     JSONObject params = request.getJSONObject("params");
                     String toolName = params.getString("name");
                     JSONObject arguments = params.optJSONObject("arguments");
-                    response.put("result", callTool(toolName, arguments));
+                    if (arguments == null) {
+                        arguments = new JSONObject();
+                    }
+                    ToolProvider provider = findToolProvider(toolName);
+                    boolean known = provider != null || "openDiff".equals(toolName) || "closeDiff".equals(toolName);
+                    Metrics.Timer toolTimer = Metrics.start("mcp", "tools/call " + (known ? toolName : "other"));
+                    JSONObject result = null;
+                    try (Tracing.Span span = Tracing.span("tool " + (known ? toolName : "other"))) {
+                        result = provider == null
+                                ? callTool(session, toolName, arguments)
+                                : callProviderTool(session, request.opt("id"), provider, toolName, arguments);
+                    } finally {
+                        toolTimer.stop(result == null || result.optBoolean("isError"));
+                    }
+                    response.put("result", result);
                     break;
+
+                case "notifications/cancelled":
+                    JSONObject cancelParams = request.optJSONObject("params");
+                    if (session != null && cancelParams != null) {
+                        session.cancel(cancelParams.opt("requestId"));
+                    }
+                    return null;
                     
+                case "ide/getContext":
+                    response.put("result", projects.trackerFor(session).fullUpdate().getJSONObject("params"));
+                    break;
+
+                case "ide/getOperation":
+                    JSONObject operationParams = request.optJSONObject("params");
+                    Operations.Operation operation = operations.get(
+                            operationParams == null ? null : operationParams.optString("operationId", null));
+                    if (operation == null) {
+                        return errorResponse(request.opt("id"), -32602, "Unknown or expired operationId");
+                    }
+                    try (Tracing.Span span = Tracing.span("operation.wait")) {
+                        response.put("result", operation.await(operationParams.optLong("waitMs", 0)));
+                    }
+                    break;
+
                 case "ping":
-                    // Ping doesn't need a response
-                    exchange.sendResponseHeaders(200, 0);
-                    exchange.getResponseBody().close();
-                    return;
+                    return null;
                     
                 default:
-                    sendError(exchange, 400, -32601, "Method not found: " + method);
-                    return;
+                    return errorResponse(request.opt("id"), -32601, "Method not found: " + method);
             }
             
-            sendResponse(exchange, 200, response.toString());
+            return response;
         }
 
-        private JSONObject getToolsList() {
-            JSONObject result = new JSONObject();
-            JSONArray tools = new JSONArray();
-            
-            // openDiff tool
-            JSONObject openDiff = new JSONObject();
-            openDiff.put("name", "openDiff");
-            openDiff.put("description", "(IDE Tool) Open a diff view to create or modify a file");
-            
-            JSONObject openDiffSchema = new JSONObject();
-            openDiffSchema.put("type", "object");
-            JSONObject openDiffProps = new JSONObject();
-            openDiffProps.put("filePath", new JSONObject().put("type", "string"));
-            openDiffProps.put("newContent", new JSONObject().put("type", "string"));
-            openDiffSchema.put("properties", openDiffProps);
-            openDiffSchema.put("required", new JSONArray().put("filePath"));
-            
-            openDiff.put("inputSchema", openDiffSchema);
-            tools.put(openDiff);
-            
-            // closeDiff tool
-            JSONObject closeDiff = new JSONObject();
-            closeDiff.put("name", "closeDiff");
-            closeDiff.put("description", "(IDE Tool) Close an open diff view for a specific file");
-            
-            JSONObject closeDiffSchema = new JSONObject();
-            closeDiffSchema.put("type", "object");
-            JSONObject closeDiffProps = new JSONObject();
-            closeDiffProps.put("filePath", new JSONObject().put("type", "string"));
-            closeDiffProps.put("suppressNotification", new JSONObject().put("type", "boolean"));
-            closeDiffSchema.put("properties", closeDiffProps);
-            closeDiffSchema.put("required", new JSONArray().put("filePath"));
-            
-            closeDiff.put("inputSchema", closeDiffSchema);
-            tools.put(closeDiff);
-            
-            result.put("tools", tools);
-            return result;
+        private ToolProvider findToolProvider(String toolName) {
+            for (ToolProvider provider : toolProviders) {
+                if (provider.provides(toolName)) {
+                    return provider;
+                }
+            }
+            return null;
         }
 
-        private JSONObject callTool(String toolName, JSONObject arguments) {
+        /**
+         * Runs a provider tool under its own progress indicator, which is
+         * cancelled by {@code notifications/cancelled}, by the session closing,
+         * or once {@code timeoutMs} elapses.
+         */
+        private JSONObject callProviderTool(MCPSession session, Object requestId, ToolProvider provider,
+                                            String toolName, JSONObject arguments) {
+            ProgressIndicator indicator = new EmptyProgressIndicator();
+            long timeoutMs = arguments.optLong("timeoutMs", Long.getLong(TOOL_TIMEOUT_PROPERTY, 30000L));
+            ScheduledFuture<?> timeout = broadcaster.schedule(indicator::cancel, timeoutMs);
+            if (session != null) {
+                session.track(requestId, indicator);
+            }
+            try {
+                return provider.call(projects.projectFor(session), toolName, arguments, indicator);
+            } catch (ProcessCanceledException e) {
+                return ToolProvider.errorResult(toolName + " was cancelled");
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                if (session != null) {
+                    session.untrack(requestId);
+                }
+            }
+        }
+
+        private JSONObject callTool(MCPSession session, String toolName, JSONObject arguments) {
             JSONObject result = new JSONObject();
             JSONArray content = new JSONArray();
             JSONObject textContent = new JSONObject();
@@ -347,10 +632,36 @@ public final class MCPServer implements Disposable {
             switch (toolName) {
                 case "openDiff":
                     String filePath = arguments.getString("filePath");
-                    String newContent = arguments.optString("newContent", "");
-                    // TODO: Implement actual diff showing in IDE
+                    JSONObject edit = new JSONObject(arguments.toMap());
+                    if (arguments.has("newContent")) {
+                        edit.put("content", arguments.getString("newContent"));
+                    }
+                    CompletableFuture<DocumentEdits.Result> pending = writes.submit(projects.projectFor(session),
+                            new DocumentEdits.Request(filePath, edit), arguments.optString("actionId", null));
                     textContent.put("type", "text");
-                    textContent.put("text", "Showing diff for " + filePath);
+                    Operations.Operation operation = operations.track("applyEdits", filePath,
+                            session == null ? null : session.getId(), pending.thenApply(DocumentEdits.Result::toJson));
+                    JSONObject state;
+                    try (Tracing.Span span = Tracing.span("operation.wait")) {
+                        state = arguments.optBoolean("async", false) ? operation.toJson()
+                                : operation.await(arguments.optLong("timeoutMs", Operations.DEFAULT_WAIT_MS));
+                    }
+                    switch (state.getString("state")) {
+                        case "succeeded":
+                            JSONObject applied = state.getJSONObject("result");
+                            textContent.put("text", "Applied " + applied.getInt("edits") + " edit(s) to " + filePath
+                                    + " (sha256 " + applied.getString("hash") + ")");
+                            break;
+                        case "failed":
+                            textContent.put("text", "Failed to apply diff to " + filePath + ": "
+                                    + state.getJSONObject("error").getString("message"));
+                            result.put("isError", true);
+                            break;
+                        default:
+                            textContent.put("text", "Started operation " + operation.id + (session == null
+                                    ? "; poll ide/getOperation for completion"
+                                    : "; completion is sent as ide/operationCompleted"));
+                    }
                     break;
                     
                 case "closeDiff":
@@ -371,61 +682,221 @@ public final class MCPServer implements Disposable {
         }
     }
 
-    private class MCPSession {
-        private final String id;
-        private OutputStream outputStream;
+    /** Builds the {@code tools/list} result: the built-in diff tools followed by each provider's tools. */
+    static JSONObject describeTools(List<ToolProvider> providers) {
+        JSONObject result = new JSONObject();
+        JSONArray tools = new JSONArray();
         
-        MCPSession(String id) {
-            this.id = id;
-        }
+        // openDiff tool
+        JSONObject openDiff = new JSONObject();
+        openDiff.put("name", "openDiff");
+        openDiff.put("description", "(IDE Tool) Create or modify a file from new content, a unified diff or offset edits");
+        
+        JSONObject openDiffSchema = new JSONObject();
+        openDiffSchema.put("type", "object");
+        JSONObject openDiffProps = new JSONObject();
+        openDiffProps.put("filePath", new JSONObject().put("type", "string"));
+        openDiffProps.put("newContent", new JSONObject().put("type", "string"));
+        openDiffProps.put("patch", new JSONObject().put("type", "string")
+                .put("description", "Unified diff to apply instead of sending the full newContent"));
+        openDiffProps.put("edits", new JSONObject().put("type", "array")
+                .put("description", "Offset edits [{offset, length, text}] to apply instead of newContent;"
+                        + " offset and length count characters of the document text, unlike /file ranges,"
+                        + " which count bytes"));
+        openDiffProps.put("baseHash", new JSONObject().put("type", "string")
+                .put("description", "Fail unless the /file ETag of the file, without quotes, still equals this hash"));
+        openDiffProps.put("async", new JSONObject().put("type", "boolean")
+                .put("description", "Return an operation ID at once and report completion over SSE"));
+        openDiffProps.put("timeoutMs", new JSONObject().put("type", "integer")
+                .put("description", "How long to wait for the edit before returning its operation ID instead;"
+                        + " at most " + Operations.DEFAULT_WAIT_MS));
+        openDiffProps.put("actionId", new JSONObject().put("type", "string")
+                .put("description", "Edits sharing an actionId are undone together as one step"));
+        openDiffSchema.put("properties", openDiffProps);
+        openDiffSchema.put("required", new JSONArray().put("filePath"));
+        
+        openDiff.put("inputSchema", openDiffSchema);
+        tools.put(openDiff);
         
-        void setOutputStream(OutputStream os) {
-            this.outputStream = os;
+        // closeDiff tool
+        JSONObject closeDiff = new JSONObject();
+        closeDiff.put("name", "closeDiff");
+        closeDiff.put("description", "(IDE Tool) Close an open diff view for a specific file");
+        
+        JSONObject closeDiffSchema = new JSONObject();
+        closeDiffSchema.put("type", "object");
+        JSONObject closeDiffProps = new JSONObject();
+        closeDiffProps.put("filePath", new JSONObject().put("type", "string"));
+        closeDiffProps.put("suppressNotification", new JSONObject().put("type", "boolean"));
+        closeDiffSchema.put("properties", closeDiffProps);
+        closeDiffSchema.put("required", new JSONArray().put("filePath"));
+        
+        closeDiff.put("inputSchema", closeDiffSchema);
+        tools.put(closeDiff);
+
+        for (ToolProvider provider : providers) {
+            provider.describe(tools);
         }
         
-        void sendPing() throws IOException {
-            if (outputStream != null) {
-                JSONObject ping = new JSONObject();
-                ping.put("jsonrpc", "2.0");
-                ping.put("method", "ping");
-                
-                String sseData = "data: " + ping.toString() + "\n\n";
-                outputStream.write(sseData.getBytes(StandardCharsets.UTF_8));
-                outputStream.flush();
+        result.put("tools", tools);
+        return result;
+    }
+
+    /**
+     * MCP over a WebSocket on {@code /mcp/ws}: one full-duplex connection per
+     * session instead of an SSE stream plus a POST per request. The first
+     * message must be {@code initialize}; after that requests run concurrently
+     * and each response is sent as soon as it is ready, so clients match them
+     * by id. Notifications share the socket.
+     */
+    private class WebSocketHandler implements HttpHandler {
+        private final MCPHandler mcp;
+
+        WebSocketHandler(MCPHandler mcp) {
+            this.mcp = mcp;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers request = exchange.getRequestHeaders();
+            if (request.containsKey("Origin")) {
+                // Browsers always send Origin; local clients don't, and no web page may drive the IDE
+                sendError(exchange, 403, -32000, "Cross-origin WebSocket connections are not allowed");
+                return;
+            }
+            String key = request.getFirst("Sec-WebSocket-Key");
+            if (!"GET".equals(exchange.getRequestMethod()) || key == null
+                    || !"websocket".equalsIgnoreCase(request.getFirst("Upgrade"))) {
+                exchange.getResponseHeaders().set("Upgrade", "websocket");
+                sendError(exchange, 426, -32000, "WebSocket upgrade required");
+                return;
+            }
+            if (!ChannelServer.canUpgrade(exchange)) {
+                sendError(exchange, 400, -32000, "WebSocket is served on the wsPort from the registry");
+                return;
+            }
+
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Upgrade", "websocket");
+            headers.set("Connection", "Upgrade");
+            headers.set("Sec-WebSocket-Accept", WebSocket.acceptKey(key));
+            String protocols = request.getFirst("Sec-WebSocket-Protocol");
+            if (protocols != null && List.of(protocols.split("\\s*,\\s*")).contains("mcp")) {
+                headers.set("Sec-WebSocket-Protocol", "mcp");
+            }
+            WebSocket socket = new WebSocket(ChannelServer.upgrade(exchange));
+            try {
+                executor.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+                socket.close();
             }
         }
-        
-        void sendContextUpdate(OutputStream os) throws IOException {
-            JSONObject notification = new JSONObject();
-            notification.put("jsonrpc", "2.0");
-            notification.put("method", "ide/contextUpdate");
-            
-            JSONObject params = new JSONObject();
-            
-            // Add open files
-            JSONArray openFiles = new JSONArray();
-            Project project = getActiveProject();
-            if (project != null) {
-                VirtualFile[] files = FileEditorManager.getInstance(project).getOpenFiles();
-                for (VirtualFile file : files) {
-                    JSONObject fileInfo = new JSONObject();
-                    fileInfo.put("uri", "file://" + file.getPath());
-                    fileInfo.put("name", file.getName());
-                    openFiles.put(fileInfo);
+
+        private void serve(WebSocket socket) {
+            MCPSession session = null;
+            // Bounds the requests one connection has running, like the HTTP concurrency limit
+            Semaphore permits = new Semaphore(Integer.getInteger(ConcurrencyLimitedHandler.MAX_CONCURRENT_PROPERTY, 16));
+            try {
+                String message;
+                while ((message = socket.readMessage()) != null) {
+                    Object body;
+                    try {
+                        body = new JSONTokener(message).nextValue();
+                    } catch (JSONException e) {
+                        send(socket, errorResponse(JSONObject.NULL, -32700, "Parse error: " + e.getMessage()));
+                        continue;
+                    }
+                    if (session == null) {
+                        session = initialize(socket, body);
+                        if (session == null) {
+                            return;
+                        }
+                        continue;
+                    }
+                    // No HTTP request per message, so no filter either: each message is its own trace
+                    Tracing.Trace trace = Tracing.start("mcp-ws message");
+                    MCPSession current = session;
+                    try (Tracing.Scope scope = Tracing.bind(trace)) {
+                        permits.acquire();
+                        Tracing.record("limit.wait", trace.start);
+                        CompletableFuture.supplyAsync(Tracing.wrap(() -> respond(current, body)), executor)
+                                .whenComplete((response, error) -> {
+                                    permits.release();
+                                    if (response != null) {
+                                        broadcaster.deliver(current, response.toString());
+                                    }
+                                    trace.finish(error != null ? 500 : 200);
+                                });
+                    }
+                }
+            } catch (IOException e) {
+                LOG.debug("WebSocket connection ended", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (session != null) {
+                    broadcaster.remove(session);
+                } else {
+                    socket.close();
                 }
             }
-            params.put("openFiles", openFiles);
-            
-            // Add workspace state
-            JSONObject workspaceState = new JSONObject();
-            workspaceState.put("isTrusted", true);
-            params.put("workspaceState", workspaceState);
-            
-            notification.put("params", params);
-            
-            String sseData = "data: " + notification.toString() + "\n\n";
-            os.write(sseData.getBytes(StandardCharsets.UTF_8));
-            os.flush();
+        }
+
+        /** Handles the opening {@code initialize}; returns {@code null} after closing a connection that didn't send one. */
+        private MCPSession initialize(WebSocket socket, Object body) throws IOException {
+            JSONObject request = body instanceof JSONObject ? (JSONObject) body : null;
+            if (request == null || !mcp.isInitializeRequest(request)) {
+                send(socket, errorResponse(request == null ? JSONObject.NULL : request.opt("id"), -32600,
+                        "The first message must be initialize"));
+                socket.close();
+                return null;
+            }
+            MCPSession session = mcp.newSession(request);
+            if (session == null) {
+                send(socket, errorResponse(request.opt("id"), -32602, "No open project contains " + mcp.workspacePath(request)));
+                socket.close();
+                return null;
+            }
+            session.attach(socket);
+            session.send(mcp.createInitializeResponse(request, projects.entryFor(session)).toString());
+            session.send(projects.trackerFor(session).fullUpdate().toString());
+            broadcaster.register(session);
+            LOG.info("MCP WebSocket session initialized: " + session.getId());
+            return session;
+        }
+
+        /** The response to one message, or {@code null} if it needs none. */
+        private Object respond(MCPSession session, Object body) {
+            if (body instanceof JSONArray) {
+                JSONArray batch = (JSONArray) body;
+                if (batch.isEmpty()) {
+                    return errorResponse(JSONObject.NULL, -32600, "Empty batch");
+                }
+                JSONArray responses = mcp.batchResponses(session, batch);
+                return responses.isEmpty() ? null : responses;
+            }
+            if (!(body instanceof JSONObject)) {
+                return errorResponse(JSONObject.NULL, -32600, "Invalid request");
+            }
+            JSONObject request = (JSONObject) body;
+            if (mcp.isInitializeRequest(request)) {
+                return errorResponse(request.opt("id"), -32600, "Session is already initialized");
+            }
+            JSONObject response = mcp.dispatchSafely(session, request);
+            if (response == null && request.has("id")) {
+                // Pings with an id get an empty result, as in a batch
+                return new JSONObject().put("jsonrpc", "2.0").put("id", request.get("id")).put("result", new JSONObject());
+            }
+            return response;
+        }
+
+        private void send(WebSocket socket, Object message) {
+            try {
+                socket.send(message.toString());
+            } catch (IOException e) {
+                LOG.debug("WebSocket send failed", e);
+            }
         }
     }
 
@@ -438,24 +909,28 @@ public final class MCPServer implements Disposable {
             response.put("ide", "JetBrains");
             response.put("mcp", true);
             
-            sendResponse(exchange, 200, response.toString());
+            sendResponse(exchange, 200, response);
         }
     }
 
-    private static void sendResponse(HttpExchange exchange, int code, String response) throws IOException {
+    /** Writes a JSONObject, JSONArray or pre-serialized JSON string straight to the exchange. */
+    private static void sendResponse(HttpExchange exchange, int code, Object response) throws IOException {
+        setJsonHeaders(exchange);
+        JsonStreams.write(exchange, code, response);
+    }
+
+    private static void setJsonHeaders(HttpExchange exchange) {
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
         exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type, mcp-session-id");
-        
-        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(code, bytes.length);
-        OutputStream os = exchange.getResponseBody();
-        os.write(bytes);
-        os.close();
     }
 
     private static void sendError(HttpExchange exchange, int httpCode, int errorCode, String message) throws IOException {
+        sendResponse(exchange, httpCode, errorResponse(JSONObject.NULL, errorCode, message));
+    }
+
+    private static JSONObject errorResponse(Object id, int errorCode, String message) {
         JSONObject response = new JSONObject();
         response.put("jsonrpc", "2.0");
         
@@ -463,28 +938,7 @@ public final class MCPServer implements Disposable {
         error.put("code", errorCode);
         error.put("message", message);
         response.put("error", error);
-        response.put("id", JSONObject.NULL);
-        
-        sendResponse(exchange, httpCode, response.toString());
-    }
-
-    private static String readRequestBody(HttpExchange exchange) throws IOException {
-        InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
-        BufferedReader br = new BufferedReader(isr);
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-        }
-        br.close();
-        return sb.toString();
-    }
-
-    private static Project getActiveProject() {
-        Project[] projects = ProjectManager.getInstance().getOpenProjects();
-        if (projects.length > 0) {
-            return projects[0];
-        }
-        return null;
+        response.put("id", id == null ? JSONObject.NULL : id);
+        return response;
     }
 }
\ No newline at end of file
@@ -0,0 +1,314 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * One MCP client. Its outbound stream, an SSE response or a WebSocket, is
+ * attached at initialize; notifications reach it through
+ * {@link SseBroadcaster}, and on a WebSocket responses share it too.
+ *
+ * Messages are queued, and the broadcaster's writer executor drains each
+ * session's queue on its own, so a client that stops reading only stalls
+ * itself. The queue holds at most {@code unipath.sse.queueCapacity} messages;
+ * a session that falls further behind is disconnected and has to reconnect,
+ * which gets it a full context snapshot. A queued message with a coalescing
+ * key is replaced rather than joined by a newer one with the same key.
+ * Closing a session whose writer is stuck on such a client aborts the
+ * connection, so the writer thread is freed.
+ */
+final class MCPSession {
+    static final String QUEUE_CAPACITY_PROPERTY = "unipath.sse.queueCapacity";
+
+    private final String id;
+    private final int capacity;
+    /** Unsent messages, oldest first; guarded by {@code this}. */
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private Outbound outbound;
+    private Executor writer;
+    private Runnable onFailure;
+    private boolean draining;
+    /** A message is being written; set under {@code this}, cleared without it. */
+    private volatile boolean writing;
+    private long coalesced;
+    private volatile long lastWriteNanos = System.nanoTime();
+    private volatile boolean closed;
+    /** Workspace of the project this session was bound to at initialize, or {@code null} for the default one. */
+    private volatile String workspacePath;
+    /** Running tool calls by JSON-RPC request id, so {@code notifications/cancelled} can stop them. */
+    private final Map<String, ProgressIndicator> inFlight = new ConcurrentHashMap<>();
+
+    /** Where messages to the client are written. */
+    interface Outbound {
+        void send(String message) throws IOException;
+
+        void close();
+
+        /** Drops the connection without writing, failing a {@link #send} blocked on the peer. */
+        void abort();
+    }
+
+    private static final class Message {
+        String data;
+        final String key;
+        final long queuedNanos = System.nanoTime();
+
+        Message(String data, String key) {
+            this.data = data;
+            this.key = key;
+        }
+    }
+
+    MCPSession(String id) {
+        this(id, Integer.getInteger(QUEUE_CAPACITY_PROPERTY, 256));
+    }
+
+    MCPSession(String id, int capacity) {
+        this.id = id;
+        this.capacity = capacity;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getWorkspacePath() {
+        return workspacePath;
+    }
+
+    void bind(String workspacePath) {
+        this.workspacePath = workspacePath;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    /** Attaches the SSE response of the initialize request. */
+    void attach(HttpExchange exchange, OutputStream os) {
+        attach(new Outbound() {
+            private Thread sender;
+            private boolean aborted;
+
+            @Override
+            public void send(String message) throws IOException {
+                synchronized (this) {
+                    sender = Thread.currentThread();
+                }
+                try {
+                    os.write(("data: " + message + "\n\n").getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                } finally {
+                    synchronized (this) {
+                        sender = null;
+                        if (aborted) {
+                            // Don't leave the interrupt to whatever the writer thread runs next
+                            Thread.interrupted();
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                exchange.close();
+            }
+
+            @Override
+            public synchronized void abort() {
+                // The exchange hides its socket, but interrupting a blocked write closes the channel under it
+                aborted = true;
+                if (sender != null) {
+                    sender.interrupt();
+                }
+            }
+        });
+    }
+
+    synchronized void attach(Outbound outbound) {
+        this.outbound = outbound;
+        this.lastWriteNanos = System.nanoTime();
+        scheduleDrain();
+    }
+
+    /** Drains the queue on {@code writer} and reports failed writes to {@code onFailure}. */
+    synchronized void writeWith(Executor writer, Runnable onFailure) {
+        this.writer = writer;
+        this.onFailure = onFailure;
+        scheduleDrain();
+    }
+
+    /** Queues {@code data}; fails if the session is closed or too far behind. */
+    void send(String data) throws IOException {
+        send(data, null, null);
+    }
+
+    /**
+     * Queues {@code data}, or, if a message with the same {@code key} is still
+     * waiting, replaces that one with {@code replacement} (or {@code data} if
+     * there is none). Replacing keeps the queue from filling up with
+     * superseded notifications while the client catches up.
+     */
+    synchronized void send(String data, String key, Supplier<String> replacement) throws IOException {
+        if (closed) {
+            throw new IOException("Session " + id + " is closed");
+        }
+        if (key != null) {
+            for (Message queued : queue) {
+                if (key.equals(queued.key)) {
+                    queued.data = replacement == null ? data : replacement.get();
+                    coalesced++;
+                    return;
+                }
+            }
+        }
+        if (queue.size() >= capacity) {
+            throw new IOException("Session " + id + " is " + queue.size() + " messages behind");
+        }
+        queue.add(new Message(data, key));
+        scheduleDrain();
+    }
+
+    /** Pings the client unless it still has messages to read. */
+    void sendPing() throws IOException {
+        synchronized (this) {
+            if (!queue.isEmpty()) {
+                return;
+            }
+        }
+        JSONObject ping = new JSONObject();
+        ping.put("jsonrpc", "2.0");
+        ping.put("method", "ping");
+        send(ping.toString());
+    }
+
+    synchronized int queued() {
+        return queue.size();
+    }
+
+    /** How long the oldest unsent message has been waiting, or 0. */
+    synchronized long lagNanos() {
+        Message oldest = queue.peek();
+        return oldest == null ? 0 : System.nanoTime() - oldest.queuedNanos;
+    }
+
+    /** Messages replaced by newer ones with the same key. */
+    synchronized long coalesced() {
+        return coalesced;
+    }
+
+    private void scheduleDrain() {
+        if (draining || queue.isEmpty() || outbound == null || writer == null) {
+            return;
+        }
+        draining = true;
+        try {
+            writer.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            draining = false;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Outbound target;
+            Message next;
+            synchronized (this) {
+                next = queue.poll();
+                if (next == null || closed) {
+                    draining = false;
+                    return;
+                }
+                target = outbound;
+                writing = true;
+            }
+            try {
+                target.send(next.data);
+                lastWriteNanos = System.nanoTime();
+            } catch (IOException | RuntimeException e) {
+                writing = false;
+                Runnable failure;
+                synchronized (this) {
+                    draining = false;
+                    failure = onFailure;
+                }
+                if (failure != null) {
+                    failure.run();
+                }
+                return;
+            }
+            writing = false;
+        }
+    }
+
+    void track(Object requestId, ProgressIndicator indicator) {
+        if (requestId != null) {
+            inFlight.put(String.valueOf(requestId), indicator);
+        }
+    }
+
+    void untrack(Object requestId) {
+        if (requestId != null) {
+            inFlight.remove(String.valueOf(requestId));
+        }
+    }
+
+    boolean cancel(Object requestId) {
+        ProgressIndicator indicator = requestId == null ? null : inFlight.get(String.valueOf(requestId));
+        if (indicator == null) {
+            return false;
+        }
+        indicator.cancel();
+        return true;
+    }
+
+    void close() {
+        inFlight.values().forEach(ProgressIndicator::cancel);
+        Outbound toClose;
+        Executor closer;
+        boolean stalled;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+            toClose = outbound;
+            outbound = null;
+            closer = writer;
+            stalled = writing;
+        }
+        if (toClose == null) {
+            return;
+        }
+        if (stalled) {
+            // The writer is blocked on this client; a close queued behind it would never run
+            toClose.abort();
+        }
+        // Closing can block on a peer that stopped reading, so keep it off the caller's thread
+        try {
+            if (closer == null) {
+                toClose.close();
+            } else {
+                closer.execute(toClose::close);
+            }
+        } catch (RejectedExecutionException e) {
+            toClose.close();
+        }
+    }
+}
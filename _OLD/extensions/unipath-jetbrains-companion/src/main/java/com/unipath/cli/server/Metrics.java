@@ -0,0 +1,273 @@
+package com.unipath.cli.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide request metrics for both servers, exported in Prometheus text
+ * format on {@code /metrics}.
+ *
+ * HTTP endpoints are measured by a {@link Filter} on their context, which also
+ * counts body bytes and starts each request's {@link Tracing trace}; MCP
+ * methods and tools are timed around dispatch. Time
+ * spent queued for the EDT is tracked separately because that is where agent
+ * operations stall the IDE.
+ */
+final class Metrics {
+    private static final Map<String, Endpoint> ENDPOINTS = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentHashMap<>();
+    private static final LatencyHistogram EDT_WAIT = new LatencyHistogram();
+
+    static {
+        gauge("unipath_jvm_threads", "Live threads in the IDE process.",
+                () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge("unipath_jvm_heap_used_bytes", "Heap in use in the IDE process.",
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    }
+
+    private Metrics() {
+    }
+
+    private static final class Endpoint {
+        final String labels;
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final AtomicLong inFlight = new AtomicLong();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Endpoint(String server, String endpoint) {
+            this.labels = "server=\"" + escape(server) + "\",endpoint=\"" + escape(endpoint) + "\"";
+        }
+    }
+
+    private static final class Gauge {
+        final String help;
+        /** Label name for {@link #values}' keys, or {@code null} for a single unlabelled sample. */
+        final String label;
+        final Supplier<Map<String, Long>> values;
+
+        Gauge(String help, String label, Supplier<Map<String, Long>> values) {
+            this.help = help;
+            this.label = label;
+            this.values = values;
+        }
+    }
+
+    /** One in-flight request; {@link #stop} must be called exactly once. */
+    static final class Timer {
+        private final Endpoint endpoint;
+        private final long start = System.nanoTime();
+
+        private Timer(Endpoint endpoint) {
+            this.endpoint = endpoint;
+            endpoint.inFlight.incrementAndGet();
+        }
+
+        void stop(boolean error) {
+            endpoint.inFlight.decrementAndGet();
+            endpoint.requests.increment();
+            if (error) {
+                endpoint.errors.increment();
+            }
+            endpoint.latency.record(System.nanoTime() - start);
+        }
+    }
+
+    private static Endpoint endpoint(String server, String endpoint) {
+        return ENDPOINTS.computeIfAbsent(server + " " + endpoint, key -> new Endpoint(server, endpoint));
+    }
+
+    static Timer start(String server, String endpoint) {
+        return new Timer(endpoint(server, endpoint));
+    }
+
+    /** Measures every request to {@code context}; status 4xx/5xx and exceptions count as errors. */
+    static HttpContext instrument(HttpContext context, String server) {
+        context.getFilters().add(filter(server, context.getPath()));
+        return context;
+    }
+
+    /** The filter behind {@link #instrument}, for servers that don't use {@link HttpContext}. */
+    static Filter filter(String server, String path) {
+        Endpoint endpoint = endpoint(server, path);
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                exchange.setStreams(new CountingInputStream(exchange.getRequestBody(), endpoint.bytesIn),
+                        new CountingOutputStream(exchange.getResponseBody(), endpoint.bytesOut));
+                Tracing.Trace trace = Tracing.start(server + " " + exchange.getRequestMethod() + " " + path, exchange);
+                exchange.getResponseHeaders().set(Tracing.TRACE_ID_HEADER, trace.traceId);
+                Timer timer = new Timer(endpoint);
+                int status = 500;
+                try (Tracing.Scope scope = Tracing.bind(trace)) {
+                    chain.doFilter(exchange);
+                    status = exchange.getResponseCode() < 0 ? 500 : exchange.getResponseCode();
+                } finally {
+                    timer.stop(status >= 400);
+                    trace.finish(status);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "UNIPATH request metrics";
+            }
+        };
+    }
+
+    static void gauge(String name, String help, LongSupplier value) {
+        GAUGES.put(name, new Gauge(help, null, () -> Map.of("", value.getAsLong())));
+    }
+
+    /** A gauge with one sample per key of {@code values}, e.g. per session, labelled {@code label}. */
+    static void gauge(String name, String help, String label, Supplier<Map<String, Long>> values) {
+        GAUGES.put(name, new Gauge(help, label, values));
+    }
+
+    /**
+     * Wraps a task bound for the EDT so the time it spends queued is recorded
+     * when it starts, in the metrics and in the traces of the submitting thread.
+     */
+    static Runnable measureEdtWait(Runnable task) {
+        long queued = System.nanoTime();
+        List<Tracing.Trace> traces = Tracing.current();
+        return () -> {
+            EDT_WAIT.record(System.nanoTime() - queued);
+            try (Tracing.Scope scope = Tracing.bind(traces)) {
+                Tracing.record("edt.wait", queued);
+                task.run();
+            }
+        };
+    }
+
+    static HttpHandler handler() {
+        return exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            try (Writer writer = JsonStreams.openWriter(exchange, 200)) {
+                write(writer);
+            }
+        };
+    }
+
+    static void write(Writer out) throws IOException {
+        Map<String, Endpoint> endpoints = new TreeMap<>(ENDPOINTS);
+
+        header(out, "unipath_requests_total", "counter", "Requests handled, by server and endpoint.");
+        for (Endpoint e : endpoints.values()) {
+            sample(out, "unipath_requests_total", e.labels, e.requests.sum());
+        }
+        header(out, "unipath_request_errors_total", "counter", "Requests that failed or returned an error.");
+        for (Endpoint e : endpoints.values()) {
+            sample(out, "unipath_request_errors_total", e.labels, e.errors.sum());
+        }
+        header(out, "unipath_requests_in_flight", "gauge", "Requests currently being handled.");
+        for (Endpoint e : endpoints.values()) {
+            sample(out, "unipath_requests_in_flight", e.labels, e.inFlight.get());
+        }
+        header(out, "unipath_request_bytes_total", "counter", "HTTP request body bytes received.");
+        for (Endpoint e : endpoints.values()) {
+            sample(out, "unipath_request_bytes_total", e.labels, e.bytesIn.sum());
+        }
+        header(out, "unipath_response_bytes_total", "counter", "HTTP response body bytes sent.");
+        for (Endpoint e : endpoints.values()) {
+            sample(out, "unipath_response_bytes_total", e.labels, e.bytesOut.sum());
+        }
+        header(out, "unipath_request_duration_seconds", "histogram", "Time to handle a request.");
+        for (Endpoint e : endpoints.values()) {
+            e.latency.writeTo(out, "unipath_request_duration_seconds", e.labels);
+        }
+        header(out, "unipath_edt_wait_seconds", "histogram", "Time tasks waited in the EDT queue before running.");
+        EDT_WAIT.writeTo(out, "unipath_edt_wait_seconds", "");
+
+        for (Map.Entry<String, Gauge> gauge : new TreeMap<>(GAUGES).entrySet()) {
+            Gauge g = gauge.getValue();
+            header(out, gauge.getKey(), "gauge", g.help);
+            for (Map.Entry<String, Long> value : new TreeMap<>(g.values.get()).entrySet()) {
+                String labels = g.label == null ? "" : g.label + "=\"" + escape(value.getKey()) + "\"";
+                sample(out, gauge.getKey(), labels, value.getValue());
+            }
+        }
+    }
+
+    private static void header(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(Writer out, String name, String labels, long value) throws IOException {
+        out.write(labels.isEmpty() ? name : name + "{" + labels + "}");
+        out.write(" " + value + "\n");
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private final LongAdder bytes;
+
+        CountingInputStream(InputStream in, LongAdder bytes) {
+            super(in);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytes.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytes.add(n);
+            }
+            return n;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder bytes;
+
+        CountingOutputStream(OutputStream out, LongAdder bytes) {
+            super(out);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes.add(len);
+        }
+    }
+}
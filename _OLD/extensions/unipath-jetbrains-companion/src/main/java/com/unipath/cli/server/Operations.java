@@ -0,0 +1,186 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.json.JSONObject;
+
+import java.io.FileNotFoundException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tracks write operations (edits, opening files) that finish after the
+ * request that started them.
+ *
+ * Every operation gets an ID up front. When it completes or fails, an
+ * {@code ide/operationCompleted} notification goes to the SSE stream of the
+ * session that started it; without a session, the caller has to poll for it.
+ * The operation's state stays queryable for the retention period afterwards.
+ * Waiting for one is capped at {@link #DEFAULT_WAIT_MS}, so a client can't
+ * park a handler thread indefinitely.
+ */
+final class Operations {
+    private static final Logger LOG = Logger.getInstance(Operations.class);
+    static final String RETAIN_PROPERTY = "unipath.operations.retainMs";
+    static final long DEFAULT_WAIT_MS = 30000L;
+
+    private final SseBroadcaster broadcaster;
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private final long retainMs;
+
+    Operations(SseBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+        this.retainMs = Long.getLong(RETAIN_PROPERTY, 5 * 60 * 1000L);
+    }
+
+    static final class Operation {
+        final String id = UUID.randomUUID().toString();
+        final String kind;
+        final String target;
+        final String sessionId;
+        private final CompletableFuture<JSONObject> future = new CompletableFuture<>();
+        private final long startNanos = System.nanoTime();
+        private volatile long durationMs = -1;
+
+        private Operation(String kind, String target, String sessionId) {
+            this.kind = kind;
+            this.target = target;
+            this.sessionId = sessionId;
+        }
+
+        void complete(JSONObject result) {
+            durationMs = elapsedMs();
+            future.complete(result);
+        }
+
+        void fail(Throwable error) {
+            durationMs = elapsedMs();
+            future.completeExceptionally(error);
+        }
+
+        private long elapsedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Waits up to {@code timeoutMs}, but no longer than {@link #DEFAULT_WAIT_MS},
+         * for the operation to finish and returns its state either way.
+         */
+        JSONObject await(long timeoutMs) {
+            try {
+                future.get(Math.min(timeoutMs, DEFAULT_WAIT_MS), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // Reported through toJson()
+            }
+            return toJson();
+        }
+
+        boolean isDone() {
+            return future.isDone();
+        }
+
+        /** The failure cause, unwrapped, or {@code null} if pending or succeeded. */
+        Throwable failure() {
+            if (!future.isCompletedExceptionally()) {
+                return null;
+            }
+            try {
+                future.join();
+                return null;
+            } catch (CompletionException e) {
+                return e.getCause() != null ? e.getCause() : e;
+            } catch (RuntimeException e) {
+                return e;
+            }
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("operationId", id);
+            json.put("kind", kind);
+            json.put("target", target);
+            if (!future.isDone()) {
+                json.put("state", "pending");
+                return json;
+            }
+            json.put("durationMs", durationMs);
+            Throwable failure = failure();
+            if (failure == null) {
+                json.put("state", "succeeded");
+                json.put("result", future.join());
+            } else {
+                json.put("state", "failed");
+                json.put("error", new JSONObject()
+                        .put("code", errorCode(failure))
+                        .put("message", String.valueOf(failure.getMessage())));
+            }
+            return json;
+        }
+    }
+
+    static String errorCode(Throwable failure) {
+        if (failure instanceof PatchException) {
+            return "conflict";
+        }
+        if (failure instanceof FileNotFoundException) {
+            return "notFound";
+        }
+        return "failed";
+    }
+
+    /** Registers an operation that the caller finishes with {@code complete} or {@code fail}. */
+    Operation start(String kind, String target, String sessionId) {
+        Operation operation = new Operation(kind, target, sessionId);
+        operations.put(operation.id, operation);
+        operation.future.whenComplete((result, error) -> finished(operation));
+        // The request's trace covers the operation too, however long it outlives the response
+        Tracing.holdUntil(operation.future);
+        return operation;
+    }
+
+    /** Registers an operation that finishes with {@code work}. */
+    Operation track(String kind, String target, String sessionId, CompletableFuture<JSONObject> work) {
+        Operation operation = start(kind, target, sessionId);
+        work.whenComplete((result, error) -> {
+            if (error == null) {
+                operation.complete(result);
+            } else {
+                operation.fail(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        });
+        return operation;
+    }
+
+    Operation get(String id) {
+        return id == null ? null : operations.get(id);
+    }
+
+    private void finished(Operation operation) {
+        Throwable failure = operation.failure();
+        if (failure != null && "failed".equals(errorCode(failure))) {
+            LOG.warn(operation.kind + " failed for " + operation.target, failure);
+        }
+
+        JSONObject notification = new JSONObject();
+        notification.put("jsonrpc", "2.0");
+        notification.put("method", "ide/operationCompleted");
+        notification.put("params", operation.toJson());
+        String data = notification.toString();
+
+        // Without a session nobody asked to be told; every other session may belong to another project
+        MCPSession session = operation.sessionId == null ? null : broadcaster.get(operation.sessionId);
+        if (session != null) {
+            broadcaster.execute(() -> broadcaster.deliver(session, data));
+        }
+        if (broadcaster.schedule(() -> operations.remove(operation.id, operation), retainMs) == null) {
+            operations.remove(operation.id, operation);
+        }
+    }
+}
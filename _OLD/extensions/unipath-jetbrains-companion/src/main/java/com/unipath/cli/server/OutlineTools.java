@@ -0,0 +1,406 @@
+package com.unipath.cli.server;
+
+import com.intellij.ide.structureView.StructureViewBuilder;
+import com.intellij.ide.structureView.StructureViewModel;
+import com.intellij.ide.structureView.StructureViewTreeElement;
+import com.intellij.ide.structureView.TreeBasedStructureViewBuilder;
+import com.intellij.ide.util.treeView.smartTree.TreeElement;
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.LanguageStructureViewBuilder;
+import com.intellij.navigation.ItemPresentation;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.ElementDescriptionUtil;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiNamedElement;
+import com.intellij.usageView.UsageViewTypeLocation;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.unipath.cli.server.ToolProvider.property;
+import static com.unipath.cli.server.ToolProvider.tool;
+
+/**
+ * Structural context from PSI, so agents can send the model an outline and
+ * one declaration instead of a whole file.
+ *
+ * The outline is the file's Structure View, which every language plugin
+ * already provides, plus its import statements. It is built in a
+ * non-blocking read action with documents committed and cached per file by
+ * document modification stamp, so repeated calls between edits don't touch
+ * PSI again. Declaration bodies are read from the document of the same stamp.
+ */
+final class OutlineTools implements ToolProvider {
+    static final String GET_OUTLINE = "getOutline";
+    static final String GET_ENCLOSING_DECLARATION = "getEnclosingDeclaration";
+    static final String CACHE_SIZE_PROPERTY = "unipath.outline.cacheSize";
+
+    private static final int DEFAULT_MAX_CHARS = 20000;
+    /** Structure views can nest without end (inherited members, for one); nobody needs more than this. */
+    private static final int MAX_DEPTH = 16;
+    private static final int MAX_IMPORTS = 500;
+
+    private final ProjectRegistry projects;
+    private final int cacheSize;
+    private final Map<String, Outline> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** One Structure View node, detached from PSI so it can outlive the read action. */
+    private static final class Node {
+        final String kind;
+        final String name;
+        final String signature;
+        final int start;
+        final int end;
+        final int line;
+        final int endLine;
+        final List<Node> children;
+
+        Node(String kind, String name, String signature, int start, int end, int line, int endLine, List<Node> children) {
+            this.kind = kind;
+            this.name = name;
+            this.signature = signature;
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.endLine = endLine;
+            this.children = children;
+        }
+
+        JSONObject toJson(int depth) {
+            JSONObject json = new JSONObject();
+            json.put("kind", kind);
+            json.put("name", name);
+            json.put("signature", signature);
+            json.put("line", line);
+            json.put("endLine", endLine);
+            json.put("offset", start);
+            json.put("endOffset", end);
+            if (!children.isEmpty()) {
+                if (depth > 1) {
+                    JSONArray array = new JSONArray();
+                    children.forEach(child -> array.put(child.toJson(depth - 1)));
+                    json.put("children", array);
+                } else {
+                    json.put("childCount", children.size());
+                }
+            }
+            return json;
+        }
+    }
+
+    private static final class Outline {
+        final long stamp;
+        final String language;
+        final List<String> imports;
+        final List<Node> declarations;
+
+        Outline(long stamp, String language, List<String> imports, List<Node> declarations) {
+            this.stamp = stamp;
+            this.language = language;
+            this.imports = imports;
+            this.declarations = declarations;
+        }
+    }
+
+    OutlineTools(ProjectRegistry projects) {
+        this.projects = projects;
+        this.cacheSize = Integer.getInteger(CACHE_SIZE_PROPERTY, 64);
+    }
+
+    @Override
+    public void describe(JSONArray tools) {
+        tools.put(tool(GET_OUTLINE, "(IDE Tool) Outline of a file from the IDE's parser: imports and the nested classes, "
+                        + "functions and fields with their signatures and line ranges, without bodies",
+                new JSONObject()
+                        .put("path", property("string", "Absolute path, or relative to the project root"))
+                        .put("depth", property("integer", "Levels of nesting to include, default all")), "path"));
+        tools.put(tool(GET_ENCLOSING_DECLARATION, "(IDE Tool) The innermost declaration (function, class, ...) containing "
+                        + "an offset, line/column or the editor caret, with its full text and the declarations around it",
+                new JSONObject()
+                        .put("path", property("string", "Absolute path, or relative to the project root; "
+                                + "defaults to the file in the active editor"))
+                        .put("offset", property("integer", "Character offset in the file"))
+                        .put("line", property("integer", "1-based line, used when offset is absent"))
+                        .put("column", property("integer", "1-based column on that line, default 1"))
+                        .put("maxChars", property("integer", "Longest declaration text to return, default "
+                                + DEFAULT_MAX_CHARS))));
+    }
+
+    @Override
+    public boolean provides(String toolName) {
+        return GET_OUTLINE.equals(toolName) || GET_ENCLOSING_DECLARATION.equals(toolName);
+    }
+
+    @Override
+    public JSONObject call(Project project, String toolName, JSONObject arguments, ProgressIndicator indicator) {
+        if (project == null) {
+            return ToolProvider.errorResult("No active project");
+        }
+        String path = arguments.optString("path", null);
+        String resolved = path == null || path.isEmpty() ? null : resolve(project, path);
+        int caret = -1;
+        if (GET_ENCLOSING_DECLARATION.equals(toolName) && !arguments.has("offset") && !arguments.has("line")) {
+            // Read the caret before the read action: the first snapshot may need the EDT
+            ProjectRegistry.Entry entry = projects.find(project.getBasePath());
+            ContextSnapshot.Selection selection;
+            try (Tracing.Span span = Tracing.span("context.current")) {
+                selection = entry == null ? null : entry.tracker.current().selection;
+            }
+            if (selection == null || (resolved != null && !resolved.equals(selection.file))) {
+                return ToolProvider.errorResult(resolved == null
+                        ? "No path given and no file open in an editor"
+                        : "Give an offset or a line; " + path + " is not in the active editor");
+            }
+            resolved = selection.file;
+            caret = selection.cursor;
+        }
+        if (resolved == null) {
+            return ToolProvider.errorResult("Missing path");
+        }
+        String file = resolved;
+        int cursor = caret;
+        try (Tracing.Span span = Tracing.span("outline.readAction")) {
+            JSONObject result = ReadAction.nonBlocking(() -> GET_OUTLINE.equals(toolName)
+                            ? outline(project, file, arguments.optInt("depth", MAX_DEPTH))
+                            : enclosingDeclaration(project, file, arguments, cursor))
+                    .inSmartMode(project)
+                    .withDocumentsCommitted(project)
+                    .wrapProgress(indicator)
+                    .executeSynchronously();
+            return ToolProvider.jsonResult(result);
+        } catch (ProcessCanceledException e) {
+            return ToolProvider.errorResult(toolName + " was cancelled");
+        } catch (IllegalArgumentException e) {
+            return ToolProvider.errorResult(e.getMessage());
+        }
+    }
+
+    private JSONObject outline(Project project, String path, int depth) {
+        Document document = document(project, path);
+        Outline outline = outline(project, path, document);
+        JSONObject json = new JSONObject();
+        json.put("path", path);
+        json.put("language", outline.language);
+        json.put("modificationStamp", outline.stamp);
+        json.put("lineCount", document.getLineCount());
+        json.put("imports", new JSONArray(outline.imports));
+        JSONArray declarations = new JSONArray();
+        outline.declarations.forEach(node -> declarations.put(node.toJson(Math.max(1, depth))));
+        json.put("declarations", declarations);
+        return json;
+    }
+
+    private JSONObject enclosingDeclaration(Project project, String path, JSONObject arguments, int caret) {
+        Document document = document(project, path);
+        // The caret comes from the last context snapshot, which may predate an edit that shortened the file
+        int offset = caret >= 0 ? Math.min(caret, document.getTextLength()) : offset(document, arguments);
+        Outline outline = outline(project, path, document);
+
+        List<Node> chain = new ArrayList<>();
+        List<Node> level = outline.declarations;
+        while (true) {
+            Node inner = null;
+            for (Node node : level) {
+                if (node.start <= offset && offset < node.end
+                        && (inner == null || node.end - node.start < inner.end - inner.start)) {
+                    inner = node;
+                }
+            }
+            if (inner == null) {
+                break;
+            }
+            chain.add(inner);
+            level = inner.children;
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("path", path);
+        json.put("offset", offset);
+        json.put("line", document.getLineNumber(offset) + 1);
+        json.put("modificationStamp", outline.stamp);
+        if (chain.isEmpty()) {
+            json.put("declaration", JSONObject.NULL);
+            return json;
+        }
+        Node declaration = chain.get(chain.size() - 1);
+        int maxChars = arguments.optInt("maxChars", DEFAULT_MAX_CHARS);
+        int end = Math.min(declaration.end, declaration.start + Math.max(0, maxChars));
+        JSONObject found = declaration.toJson(1);
+        found.remove("childCount");
+        found.put("text", document.getImmutableCharSequence().subSequence(declaration.start, end).toString());
+        found.put("truncated", end < declaration.end);
+        json.put("declaration", found);
+
+        JSONArray containers = new JSONArray();
+        for (Node container : chain.subList(0, chain.size() - 1)) {
+            containers.put(new JSONObject()
+                    .put("kind", container.kind)
+                    .put("name", container.name)
+                    .put("signature", container.signature)
+                    .put("line", container.line));
+        }
+        json.put("containers", containers);
+        return json;
+    }
+
+    /** The cached outline of {@code path} if its document hasn't changed since, otherwise a fresh one. */
+    private Outline outline(Project project, String path, Document document) {
+        long stamp = document.getModificationStamp();
+        synchronized (cache) {
+            Outline cached = cache.get(path);
+            if (cached != null && cached.stamp == stamp) {
+                return cached;
+            }
+        }
+        PsiFile file = PsiDocumentManager.getInstance(project).getPsiFile(document);
+        if (file == null) {
+            throw new IllegalArgumentException("No PSI for " + path);
+        }
+        Outline outline = new Outline(stamp, file.getLanguage().getDisplayName(), imports(file), declarations(file, document));
+        synchronized (cache) {
+            cache.put(path, outline);
+            while (cache.size() > cacheSize) {
+                cache.remove(cache.keySet().iterator().next());
+            }
+        }
+        return outline;
+    }
+
+    private static List<Node> declarations(PsiFile file, Document document) {
+        StructureViewBuilder builder = LanguageStructureViewBuilder.getInstance().getStructureViewBuilder(file);
+        if (!(builder instanceof TreeBasedStructureViewBuilder)) {
+            return Collections.emptyList();
+        }
+        StructureViewModel model = ((TreeBasedStructureViewBuilder) builder).createStructureViewModel(null);
+        try {
+            return nodes(model.getRoot(), file, document, MAX_DEPTH);
+        } finally {
+            Disposer.dispose(model);
+        }
+    }
+
+    private static List<Node> nodes(TreeElement parent, PsiFile file, Document document, int depth) {
+        if (depth == 0) {
+            return Collections.emptyList();
+        }
+        List<Node> nodes = new ArrayList<>();
+        for (TreeElement child : parent.getChildren()) {
+            ProgressManager.checkCanceled();
+            Object value = child instanceof StructureViewTreeElement ? ((StructureViewTreeElement) child).getValue() : null;
+            if (!(value instanceof PsiElement) || !((PsiElement) value).isValid()
+                    || ((PsiElement) value).getContainingFile() != file) {
+                // Inherited members and other elements from elsewhere
+                continue;
+            }
+            PsiElement element = (PsiElement) value;
+            TextRange range = element.getTextRange();
+            if (range == null) {
+                continue;
+            }
+            ItemPresentation presentation = child.getPresentation();
+            String signature = presentation == null ? null : presentation.getPresentableText();
+            String name = element instanceof PsiNamedElement ? ((PsiNamedElement) element).getName() : null;
+            String kind = ElementDescriptionUtil.getElementDescription(element, UsageViewTypeLocation.INSTANCE);
+            nodes.add(new Node(kind == null ? "" : kind.toLowerCase(Locale.ROOT),
+                    name != null ? name : signature,
+                    signature != null ? signature : name,
+                    range.getStartOffset(), range.getEndOffset(),
+                    document.getLineNumber(range.getStartOffset()) + 1,
+                    document.getLineNumber(range.getEndOffset()) + 1,
+                    nodes(child, file, document, depth - 1)));
+        }
+        return nodes;
+    }
+
+    /**
+     * Import statements, found by element type so this works for any language:
+     * top-level elements named like {@code IMPORT_*}, or the ones inside an
+     * import list such as Java's and Kotlin's.
+     */
+    private static List<String> imports(PsiFile file) {
+        List<String> imports = new ArrayList<>();
+        for (PsiElement child : file.getChildren()) {
+            if (!isImport(child)) {
+                continue;
+            }
+            boolean list = false;
+            for (PsiElement statement : child.getChildren()) {
+                if (isImport(statement) && imports.size() < MAX_IMPORTS) {
+                    imports.add(statement.getText().replaceAll("\\s+", " ").trim());
+                    list = true;
+                }
+            }
+            if (!list && imports.size() < MAX_IMPORTS) {
+                imports.add(child.getText().replaceAll("\\s+", " ").trim());
+            }
+        }
+        return imports;
+    }
+
+    private static boolean isImport(PsiElement element) {
+        ASTNode node = element.getNode();
+        return node != null && node.getElementType().toString().toUpperCase(Locale.ROOT).contains("IMPORT");
+    }
+
+    private static Document document(Project project, String path) {
+        VirtualFile vFile = LocalFileSystem.getInstance().findFileByPath(path);
+        if (vFile == null || vFile.isDirectory()) {
+            throw new IllegalArgumentException("No such file: " + path);
+        }
+        PsiFile file = PsiManager.getInstance(project).findFile(vFile);
+        Document document = file == null ? null : PsiDocumentManager.getInstance(project).getDocument(file);
+        if (document == null) {
+            throw new IllegalArgumentException("Not a text file: " + path);
+        }
+        return document;
+    }
+
+    private static int offset(Document document, JSONObject arguments) {
+        int offset;
+        if (arguments.has("offset")) {
+            offset = arguments.optInt("offset");
+        } else if (arguments.has("line")) {
+            int line = arguments.optInt("line") - 1;
+            if (line < 0 || line >= Math.max(1, document.getLineCount())) {
+                throw new IllegalArgumentException("Line " + (line + 1) + " is outside the file");
+            }
+            int start = document.getLineCount() == 0 ? 0 : document.getLineStartOffset(line);
+            int lineEnd = document.getLineCount() == 0 ? 0 : document.getLineEndOffset(line);
+            offset = Math.min(start + Math.max(0, arguments.optInt("column", 1) - 1), lineEnd);
+        } else {
+            throw new IllegalArgumentException("Give an offset or a line");
+        }
+        if (offset < 0 || offset > document.getTextLength()) {
+            throw new IllegalArgumentException("Offset " + offset + " is outside the file");
+        }
+        return offset;
+    }
+
+    /** {@code path} made absolute against the project root, with {@code /} separators. */
+    static String resolve(Project project, String path) {
+        String normalized = ProjectRegistry.normalize(path);
+        if (!Paths.get(normalized).isAbsolute() && project.getBasePath() != null) {
+            normalized = ProjectRegistry.normalize(Paths.get(project.getBasePath(), normalized).toString());
+        }
+        return normalized;
+    }
+}
@@ -0,0 +1,11 @@
+package com.unipath.cli.server;
+
+/**
+ * Raised when an edit list or unified diff can't be applied to the current
+ * document text, e.g. a hunk's context no longer matches.
+ */
+final class PatchException extends Exception {
+    PatchException(String message) {
+        super(message);
+    }
+}
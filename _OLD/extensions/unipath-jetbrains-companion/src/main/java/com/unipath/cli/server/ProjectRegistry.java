@@ -0,0 +1,224 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+/**
+ * The open projects requests are routed to, keyed by workspace path.
+ *
+ * MCP sessions bind to a project at {@code initialize}; legacy HTTP requests
+ * name one with the {@code X-Unipath-Workspace} header or fall back to the
+ * project containing the file they touch. Lookups are a hash lookup per path
+ * segment at most, and requests that name no project go to the first one
+ * opened, as before. Each project has its own {@link ContextTracker}, so
+ * sessions only hear about the editors of their project, and its own
+ * {@link FileTree} and {@link Diagnostics}.
+ *
+ * Every IDE process describes itself in {@code <registry dir>/<pid>.json}:
+ * its ports, socket and open projects. CLIs list that directory to find the
+ * IDE that has their workspace open.
+ */
+final class ProjectRegistry {
+    private static final Logger LOG = Logger.getInstance(ProjectRegistry.class);
+    static final String DIR_PROPERTY = "unipath.registry.dir";
+
+    private final SseBroadcaster broadcaster;
+    private final Map<String, Entry> byPath = new ConcurrentHashMap<>();
+    private final List<Entry> order = new CopyOnWriteArrayList<>();
+    private final Map<String, Object> endpoints = new ConcurrentHashMap<>();
+    private final ContextTracker none;
+    private final Path file;
+    /** Set once the IDE is shutting down, so a late update can't bring the file back; guarded by {@code this}. */
+    private boolean deleted;
+
+    static final class Entry {
+        final Project project;
+        final String workspacePath;
+        final ContextTracker tracker;
+        final FileTree tree;
+        final Diagnostics diagnostics;
+
+        private Entry(Project project, String workspacePath, ContextTracker tracker, FileTree tree,
+                      Diagnostics diagnostics) {
+            this.project = project;
+            this.workspacePath = workspacePath;
+            this.tracker = tracker;
+            this.tree = tree;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    ProjectRegistry(SseBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+        this.none = new ContextTracker(broadcaster, null, session -> entryFor(session) == null);
+        String dir = System.getProperty(DIR_PROPERTY);
+        Path base = dir != null ? Paths.get(dir) : Paths.get(System.getProperty("java.io.tmpdir"), "unipath-ide");
+        this.file = base.resolve(ProcessHandle.current().pid() + ".json");
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /** Starts routing to {@code project} and tracking its editors until it closes. */
+    void register(Project project) {
+        String basePath = project.getBasePath();
+        if (basePath == null) {
+            return;
+        }
+        String workspacePath = normalize(basePath);
+        Predicate<MCPSession> audience = session -> projectFor(session) == project;
+        Entry entry = new Entry(project, workspacePath, new ContextTracker(broadcaster, project, audience),
+                new FileTree(project, workspacePath), new Diagnostics(broadcaster, project, audience));
+        if (byPath.putIfAbsent(workspacePath, entry) != null) {
+            return;
+        }
+        order.add(entry);
+        entry.tracker.listenToEditors(project);
+        entry.tracker.listenToProject(project);
+        entry.tree.listen(project);
+        entry.diagnostics.listen(project);
+        Disposer.register(project, () -> unregister(entry));
+        entry.tracker.changed();
+        update();
+    }
+
+    private void unregister(Entry entry) {
+        byPath.remove(entry.workspacePath, entry);
+        order.remove(entry);
+        update();
+    }
+
+    /**
+     * Republishes the registry file on a pooled thread, as projects open and
+     * close on the EDT. Until a server has bound there is nothing worth
+     * publishing; the first {@link #endpoint} writes the file.
+     */
+    private void update() {
+        if (!endpoints.isEmpty()) {
+            ApplicationManager.getApplication().executeOnPooledThread(this::write);
+        }
+    }
+
+    /** The project whose workspace is exactly {@code workspacePath}, or {@code null}. */
+    Entry find(String workspacePath) {
+        return workspacePath == null ? null : byPath.get(normalize(workspacePath));
+    }
+
+    /** The innermost open project containing {@code path}, or {@code null}. */
+    Entry forFile(String path) {
+        if (path == null) {
+            return null;
+        }
+        String candidate = normalize(path);
+        while (true) {
+            Entry entry = byPath.get(candidate);
+            if (entry != null) {
+                return entry;
+            }
+            int slash = candidate.lastIndexOf('/');
+            if (slash <= 0) {
+                return null;
+            }
+            candidate = candidate.substring(0, slash);
+        }
+    }
+
+    /** Where requests that don't name a project go: the first project opened that is still open. */
+    Entry defaultEntry() {
+        for (Entry entry : order) {
+            if (!entry.project.isDisposed()) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** The project {@code session} is bound to, or the default one for unbound sessions and HTTP calls. */
+    Entry entryFor(MCPSession session) {
+        String workspacePath = session == null ? null : session.getWorkspacePath();
+        return workspacePath == null ? defaultEntry() : byPath.get(workspacePath);
+    }
+
+    Project projectFor(MCPSession session) {
+        Entry entry = entryFor(session);
+        return entry == null ? null : entry.project;
+    }
+
+    /** Editor state for {@code session}'s project; empty if it has none. */
+    ContextTracker trackerFor(MCPSession session) {
+        Entry entry = entryFor(session);
+        return entry == null ? none : entry.tracker;
+    }
+
+    List<Entry> entries() {
+        return List.copyOf(order);
+    }
+
+    /** Records where one of the servers is listening, e.g. {@code mcpPort}, and republishes the registry file. */
+    void endpoint(String name, Object value) {
+        endpoints.put(name, value);
+        write();
+    }
+
+    synchronized void write() {
+        if (deleted) {
+            return;
+        }
+        JSONObject json = new JSONObject();
+        json.put("pid", ProcessHandle.current().pid());
+        new TreeMap<>(endpoints).forEach(json::put);
+        JSONArray projects = new JSONArray();
+        for (Entry entry : order) {
+            projects.put(new JSONObject()
+                    .put("name", entry.project.getName())
+                    .put("workspacePath", entry.workspacePath));
+        }
+        json.put("projects", projects);
+        try {
+            Files.createDirectories(file.getParent());
+            // Readers must never see a half-written file
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tmp, json.toString(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Failed to write project registry " + file, e);
+        }
+    }
+
+    synchronized void delete() {
+        deleted = true;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete project registry " + file, e);
+        }
+    }
+
+    /** System-independent absolute path without a trailing slash or {@code file://} prefix. */
+    static String normalize(String path) {
+        String normalized = path.startsWith("file://") ? path.substring("file://".length()) : path;
+        normalized = normalized.replace('\\', '/');
+        while (normalized.length() > 1 && normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+}
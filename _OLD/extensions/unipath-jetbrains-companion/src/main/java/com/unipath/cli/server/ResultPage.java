@@ -0,0 +1,57 @@
+package com.unipath.cli.server;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Collects one page of results out of a stream of candidates. Callers feed
+ * results in a stable order and stop as soon as {@link #offer} returns false.
+ */
+final class ResultPage {
+    static final int DEFAULT_LIMIT = 50;
+    static final int MAX_LIMIT = 500;
+
+    private final int offset;
+    private final int limit;
+    private final JSONArray results = new JSONArray();
+    private int seen;
+    private boolean hasMore;
+
+    ResultPage(int offset, int limit) {
+        this.offset = Math.max(0, offset);
+        this.limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+    }
+
+    static ResultPage from(JSONObject arguments) {
+        return new ResultPage(arguments.optInt("offset", 0), arguments.optInt("limit", DEFAULT_LIMIT));
+    }
+
+    /** Returns false once the page is full and one more result proved there are more. */
+    boolean offer(JSONObject result) {
+        if (seen++ < offset) {
+            return true;
+        }
+        if (results.length() == limit) {
+            hasMore = true;
+            return false;
+        }
+        results.put(result);
+        return true;
+    }
+
+    boolean isFull() {
+        return hasMore;
+    }
+
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("results", results);
+        json.put("offset", offset);
+        json.put("limit", limit);
+        json.put("hasMore", hasMore);
+        if (hasMore) {
+            json.put("nextOffset", offset + limit);
+        }
+        return json;
+    }
+}
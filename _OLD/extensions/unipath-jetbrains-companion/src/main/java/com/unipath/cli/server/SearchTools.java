@@ -0,0 +1,282 @@
+package com.unipath.cli.server;
+
+import com.intellij.navigation.ChooseByNameContributor;
+import com.intellij.navigation.ItemPresentation;
+import com.intellij.navigation.NavigationItem;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.search.FilenameIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PsiSearchHelper;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+import static com.unipath.cli.server.ToolProvider.property;
+import static com.unipath.cli.server.ToolProvider.tool;
+
+/**
+ * Project-wide lookup tools backed by the IDE's own indexes: file names
+ * ({@link FilenameIndex}), text via the word index ({@link PsiSearchHelper})
+ * and symbols via the "Go to Symbol/Class" contributors.
+ *
+ * Each search runs as a non-blocking read action in smart mode, so it yields to
+ * write actions and restarts instead of freezing typing. Results come back in
+ * a stable order, one {@link ResultPage} at a time.
+ */
+final class SearchTools implements ToolProvider {
+    static final String FIND_FILES = "findFiles";
+    static final String SEARCH_TEXT = "searchText";
+    static final String FIND_SYMBOL = "findSymbol";
+
+    private static final int MAX_LINE_PREVIEW = 300;
+
+    @Override
+    public void describe(JSONArray tools) {
+        tools.put(tool(FIND_FILES, "(IDE Tool) Find project files whose name contains the query, using the IDE file-name index",
+                pagingProperties().put("query", property("string", "Part of the file name to look for")), "query"));
+        tools.put(tool(SEARCH_TEXT, "(IDE Tool) Full-text search across the project using the IDE word index",
+                pagingProperties()
+                        .put("query", property("string", "Text to find; must contain at least one whole word"))
+                        .put("caseSensitive", property("boolean", "Defaults to true")), "query"));
+        tools.put(tool(FIND_SYMBOL, "(IDE Tool) Find classes, functions and other symbols by name",
+                pagingProperties().put("query", property("string", "Part of the symbol name to look for")), "query"));
+    }
+
+    @Override
+    public boolean provides(String toolName) {
+        return FIND_FILES.equals(toolName) || SEARCH_TEXT.equals(toolName) || FIND_SYMBOL.equals(toolName);
+    }
+
+    @Override
+    public JSONObject call(Project project, String toolName, JSONObject arguments, ProgressIndicator indicator) {
+        if (project == null) {
+            return ToolProvider.errorResult("No active project");
+        }
+        String query = arguments.optString("query", "");
+        if (query.isEmpty()) {
+            return ToolProvider.errorResult("Missing query");
+        }
+        ResultPage page;
+        try {
+            switch (toolName) {
+                case FIND_FILES:
+                    page = run(project, indicator, () -> findFiles(project, query, ResultPage.from(arguments)));
+                    break;
+                case SEARCH_TEXT:
+                    page = run(project, indicator, () -> searchText(project, query,
+                            arguments.optBoolean("caseSensitive", true), ResultPage.from(arguments)));
+                    break;
+                default:
+                    page = run(project, indicator, () -> findSymbols(project, query, ResultPage.from(arguments)));
+                    break;
+            }
+        } catch (ProcessCanceledException e) {
+            return ToolProvider.errorResult(toolName + " was cancelled");
+        } catch (IllegalArgumentException e) {
+            return ToolProvider.errorResult(e.getMessage());
+        }
+        return ToolProvider.jsonResult(page.toJson());
+    }
+
+    /**
+     * Runs {@code search} in a non-blocking read action. A write action
+     * restarts it from scratch, so each attempt must fill a page of its own.
+     */
+    private static ResultPage run(Project project, ProgressIndicator indicator, Callable<ResultPage> search) {
+        try (Tracing.Span span = Tracing.span("search.readAction")) {
+            return ReadAction.nonBlocking(search)
+                    .inSmartMode(project)
+                    .wrapProgress(indicator)
+                    .executeSynchronously();
+        }
+    }
+
+    private static ResultPage findFiles(Project project, String query, ResultPage page) {
+        GlobalSearchScope scope = GlobalSearchScope.projectScope(project);
+        String needle = query.toLowerCase(Locale.ROOT);
+        List<String> names = new ArrayList<>();
+        FilenameIndex.processAllFileNames(name -> {
+            ProgressManager.checkCanceled();
+            if (name.toLowerCase(Locale.ROOT).contains(needle)) {
+                names.add(name);
+            }
+            return true;
+        }, scope, null);
+        names.sort(byRelevance(needle));
+
+        for (String name : names) {
+            List<VirtualFile> files = new ArrayList<>(FilenameIndex.getVirtualFilesByName(name, scope));
+            files.sort(Comparator.comparing(VirtualFile::getPath));
+            for (VirtualFile file : files) {
+                ProgressManager.checkCanceled();
+                if (!page.offer(new JSONObject().put("path", file.getPath()).put("name", name))) {
+                    return page;
+                }
+            }
+        }
+        return page;
+    }
+
+    private static ResultPage searchText(Project project, String query, boolean caseSensitive, ResultPage page) {
+        String word = longestWord(query);
+        if (word == null) {
+            throw new IllegalArgumentException("searchText needs a query with at least one whole word");
+        }
+        GlobalSearchScope scope = GlobalSearchScope.projectScope(project);
+        Set<VirtualFile> candidates = new HashSet<>();
+        PsiSearchHelper.getInstance(project).processAllFilesWithWord(word, scope, (PsiFile file) -> {
+            ProgressManager.checkCanceled();
+            if (file.getVirtualFile() != null) {
+                candidates.add(file.getVirtualFile());
+            }
+            return true;
+        }, caseSensitive);
+
+        List<VirtualFile> files = new ArrayList<>(candidates);
+        files.sort(Comparator.comparing(VirtualFile::getPath));
+        for (VirtualFile file : files) {
+            Document document = FileDocumentManager.getInstance().getDocument(file);
+            if (document == null) {
+                continue;
+            }
+            String text = document.getImmutableCharSequence().toString();
+            int from = 0;
+            while ((from = indexOf(text, query, from, caseSensitive)) >= 0) {
+                ProgressManager.checkCanceled();
+                int line = document.getLineNumber(from);
+                int lineStart = document.getLineStartOffset(line);
+                int lineEnd = Math.min(document.getLineEndOffset(line), lineStart + MAX_LINE_PREVIEW);
+                JSONObject match = new JSONObject();
+                match.put("path", file.getPath());
+                match.put("line", line + 1);
+                match.put("column", from - lineStart + 1);
+                match.put("offset", from);
+                match.put("preview", text.substring(lineStart, lineEnd));
+                if (!page.offer(match)) {
+                    return page;
+                }
+                from += query.length();
+            }
+        }
+        return page;
+    }
+
+    private static ResultPage findSymbols(Project project, String query, ResultPage page) {
+        String needle = query.toLowerCase(Locale.ROOT);
+        List<ChooseByNameContributor> contributors = new ArrayList<>(ChooseByNameContributor.CLASS_EP_NAME.getExtensionList());
+        contributors.addAll(ChooseByNameContributor.SYMBOL_EP_NAME.getExtensionList());
+
+        Set<String> names = new TreeSet<>();
+        for (ChooseByNameContributor contributor : contributors) {
+            for (String name : contributor.getNames(project, false)) {
+                ProgressManager.checkCanceled();
+                if (name != null && name.toLowerCase(Locale.ROOT).contains(needle)) {
+                    names.add(name);
+                }
+            }
+        }
+        List<String> ordered = new ArrayList<>(names);
+        ordered.sort(byRelevance(needle));
+
+        Set<String> seen = new LinkedHashSet<>();
+        for (String name : ordered) {
+            for (ChooseByNameContributor contributor : contributors) {
+                for (NavigationItem item : contributor.getItemsByName(name, query, project, false)) {
+                    ProgressManager.checkCanceled();
+                    JSONObject symbol = describeSymbol(name, item);
+                    if (!seen.add(symbol.optString("path") + ":" + symbol.optInt("offset", -1) + ":" + name)) {
+                        continue;
+                    }
+                    if (!page.offer(symbol)) {
+                        return page;
+                    }
+                }
+            }
+        }
+        return page;
+    }
+
+    private static JSONObject describeSymbol(String name, NavigationItem item) {
+        JSONObject symbol = new JSONObject();
+        symbol.put("name", name);
+        ItemPresentation presentation = item.getPresentation();
+        if (presentation != null && presentation.getLocationString() != null) {
+            symbol.put("location", presentation.getLocationString());
+        }
+        if (item instanceof PsiElement) {
+            PsiElement element = (PsiElement) item;
+            PsiFile file = element.getContainingFile();
+            VirtualFile vFile = file == null ? null : file.getVirtualFile();
+            if (vFile != null) {
+                int offset = element.getTextOffset();
+                symbol.put("path", vFile.getPath());
+                symbol.put("offset", offset);
+                Document document = FileDocumentManager.getInstance().getDocument(vFile);
+                if (document != null && offset >= 0 && offset <= document.getTextLength()) {
+                    symbol.put("line", document.getLineNumber(offset) + 1);
+                }
+            }
+        }
+        return symbol;
+    }
+
+    private static JSONObject pagingProperties() {
+        JSONObject properties = new JSONObject();
+        properties.put("offset", property("integer", "Number of results to skip"));
+        properties.put("limit", property("integer", "Page size, default " + ResultPage.DEFAULT_LIMIT
+                + ", at most " + ResultPage.MAX_LIMIT));
+        return properties;
+    }
+
+    /** Exact matches first, then prefix matches, then shorter names. */
+    private static Comparator<String> byRelevance(String needle) {
+        return Comparator.<String>comparingInt(name -> {
+            String lower = name.toLowerCase(Locale.ROOT);
+            if (lower.equals(needle)) {
+                return 0;
+            }
+            return lower.startsWith(needle) ? 1 : 2;
+        }).thenComparingInt(String::length).thenComparing(Comparator.naturalOrder());
+    }
+
+    private static String longestWord(String query) {
+        String longest = null;
+        for (String word : query.split("[^\\p{L}\\p{N}_]+")) {
+            if (!word.isEmpty() && (longest == null || word.length() > longest.length())) {
+                longest = word;
+            }
+        }
+        return longest;
+    }
+
+    private static int indexOf(String text, String query, int from, boolean caseSensitive) {
+        if (caseSensitive) {
+            return text.indexOf(query, from);
+        }
+        int last = text.length() - query.length();
+        for (int i = from; i <= last; i++) {
+            if (text.regionMatches(true, i, query, 0, query.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,34 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+
+/**
+ * Port allocation for the HTTP servers. Each server asks for its usual port
+ * and takes an ephemeral one when that is held by another IDE instance (or
+ * by the other server), then advertises what it got in the
+ * {@link ProjectRegistry} file.
+ */
+final class ServerPorts {
+    private static final Logger LOG = Logger.getInstance(ServerPorts.class);
+    static final int DEFAULT_PORT = 62325;
+
+    private ServerPorts() {
+    }
+
+    /** Binds the port in {@code portProperty} (default {@link #DEFAULT_PORT}), or any free one; 0 always means any. */
+    static HttpServer bind(String portProperty) throws IOException {
+        int preferred = Integer.getInteger(portProperty, DEFAULT_PORT);
+        try {
+            return HttpServer.create(new InetSocketAddress(preferred), 0);
+        } catch (BindException e) {
+            HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+            LOG.info("Port " + preferred + " is taken, using " + server.getAddress().getPort());
+            return server;
+        }
+    }
+}
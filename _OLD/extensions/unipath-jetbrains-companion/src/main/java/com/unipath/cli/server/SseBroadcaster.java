@@ -0,0 +1,216 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Owns every MCP session and its SSE stream.
+ *
+ * A single scheduler thread sends keep-alive pings and runs timers, so the
+ * thread count stays flat no matter how many sessions are connected.
+ * Broadcasts only queue messages on each session; the writer executor drains
+ * the queues, so a client that stops reading holds up nobody else. Pings are
+ * only sent to sessions that have been idle for a full interval, and a failed
+ * write is how we detect that a peer went away. A session whose queue
+ * overflows, or whose oldest message has waited longer than
+ * {@code unipath.sse.maxLagMs}, is dropped.
+ */
+final class SseBroadcaster {
+    private static final Logger LOG = Logger.getInstance(SseBroadcaster.class);
+
+    static final String PING_INTERVAL_PROPERTY = "unipath.sse.pingIntervalMs";
+    static final String MAX_LAG_PROPERTY = "unipath.sse.maxLagMs";
+
+    private final Map<String, MCPSession> sessions = new ConcurrentHashMap<>();
+    private final long pingIntervalMs;
+    private final long maxLagMs;
+    private final LongAdder dropped = new LongAdder();
+    private ScheduledExecutorService scheduler;
+    private ExecutorService writers;
+
+    SseBroadcaster() {
+        this(Long.getLong(PING_INTERVAL_PROPERTY, 30000L), Long.getLong(MAX_LAG_PROPERTY, 60000L));
+    }
+
+    SseBroadcaster(long pingIntervalMs, long maxLagMs) {
+        this.pingIntervalMs = pingIntervalMs;
+        this.maxLagMs = maxLagMs;
+    }
+
+    synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "unipath-sse");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::pingIdleSessions, pingIntervalMs, pingIntervalMs,
+                TimeUnit.MILLISECONDS);
+        writers = HandlerExecutors.lazy("unipath-sse-writer");
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        sessions.values().forEach(MCPSession::close);
+        sessions.clear();
+        if (writers != null) {
+            // Let the queued closes run; a write stuck on a dead peer must not hold up shutdown
+            writers.shutdown();
+            writers = null;
+        }
+    }
+
+    void register(MCPSession session) {
+        sessions.put(session.getId(), session);
+        session.writeWith(writers, () -> {
+            LOG.debug("SSE peer went away, dropping session " + session.getId());
+            remove(session);
+        });
+    }
+
+    MCPSession get(String id) {
+        return id == null ? null : sessions.get(id);
+    }
+
+    boolean contains(String id) {
+        return id != null && sessions.containsKey(id);
+    }
+
+    Collection<MCPSession> sessions() {
+        return sessions.values();
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    /** {@code value} of every session, by session ID, for per-session metrics. */
+    Map<String, Long> perSession(ToLongFunction<MCPSession> value) {
+        Map<String, Long> values = new HashMap<>();
+        for (MCPSession session : sessions.values()) {
+            values.put(session.getId(), value.applyAsLong(session));
+        }
+        return values;
+    }
+
+    /** Sessions dropped for falling behind. */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    void remove(MCPSession session) {
+        sessions.remove(session.getId(), session);
+        session.close();
+    }
+
+    void execute(Runnable task) {
+        ScheduledExecutorService current = scheduler;
+        if (current != null) {
+            current.execute(task);
+        }
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        ScheduledExecutorService current = scheduler;
+        return current == null ? null : current.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    void broadcast(String data) {
+        broadcast(data, session -> true);
+    }
+
+    /** Sends {@code data} to the sessions {@code audience} accepts. */
+    void broadcast(String data, Predicate<MCPSession> audience) {
+        broadcast(data, audience, null, null);
+    }
+
+    /**
+     * Sends {@code data} to the sessions {@code audience} accepts. Where a
+     * message with the same {@code key} is still queued, it is replaced by
+     * {@code replacement}, computed at most once per broadcast.
+     */
+    void broadcast(String data, Predicate<MCPSession> audience, String key, Supplier<String> replacement) {
+        if (scheduler == null) {
+            return;
+        }
+        Supplier<String> once = replacement == null ? null : new Supplier<>() {
+            private String value;
+
+            @Override
+            public String get() {
+                if (value == null) {
+                    value = replacement.get();
+                }
+                return value;
+            }
+        };
+        for (MCPSession session : sessions.values()) {
+            if (audience.test(session)) {
+                deliver(session, data, key, once);
+            }
+        }
+    }
+
+    void deliver(MCPSession session, String data) {
+        deliver(session, data, null, null);
+    }
+
+    private void deliver(MCPSession session, String data, String key, Supplier<String> replacement) {
+        try {
+            session.send(data, key, replacement);
+        } catch (IOException e) {
+            drop(session, e.getMessage());
+        }
+    }
+
+    private void drop(MCPSession session, String reason) {
+        if (sessions.containsKey(session.getId())) {
+            dropped.increment();
+            LOG.info("Dropping MCP session " + session.getId() + ": " + reason);
+        }
+        remove(session);
+    }
+
+    private void pingIdleSessions() {
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMs);
+        long maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMs);
+        long now = System.nanoTime();
+        for (MCPSession session : sessions.values()) {
+            long lag = session.lagNanos();
+            if (lag > maxLagNanos) {
+                drop(session, "no write for " + TimeUnit.NANOSECONDS.toMillis(lag) + " ms");
+                continue;
+            }
+            if (now - session.getLastWriteNanos() < idleNanos) {
+                continue;
+            }
+            try {
+                session.sendPing();
+            } catch (IOException e) {
+                LOG.debug("Failed to send ping to session " + session.getId());
+                remove(session);
+            } catch (RuntimeException e) {
+                LOG.warn("Unexpected error pinging session " + session.getId(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.unipath.cli.server;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Replacement of {@code length} characters at {@code offset} with {@code text},
+ * expressed against the document text before any edit of the same batch.
+ */
+final class TextEdit {
+    final int offset;
+    final int length;
+    final String text;
+
+    TextEdit(int offset, int length, String text) {
+        this.offset = offset;
+        this.length = length;
+        this.text = text;
+    }
+
+    int end() {
+        return offset + length;
+    }
+
+    /** Parses {@code [{"offset":..,"length":..,"text":..}]}; {@code end} may be given instead of {@code length}. */
+    static List<TextEdit> fromJson(JSONArray array) {
+        List<TextEdit> edits = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject edit = array.getJSONObject(i);
+            int offset = edit.getInt("offset");
+            int length = edit.has("length") ? edit.getInt("length") : edit.optInt("end", offset) - offset;
+            edits.add(new TextEdit(offset, length, edit.optString("text", "")));
+        }
+        return edits;
+    }
+
+    /** Smallest single edit that turns {@code current} into {@code replacement}. */
+    static TextEdit replaceAll(CharSequence current, String replacement) {
+        int prefix = 0;
+        int max = Math.min(current.length(), replacement.length());
+        while (prefix < max && current.charAt(prefix) == replacement.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && current.charAt(current.length() - 1 - suffix) == replacement.charAt(replacement.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return new TextEdit(prefix, current.length() - suffix - prefix,
+                replacement.substring(prefix, replacement.length() - suffix));
+    }
+
+    /**
+     * Checks the edits fit inside a text of {@code textLength} characters and
+     * don't overlap, and returns them ordered from the end of the text so they
+     * can be applied one after another without shifting offsets.
+     */
+    static List<TextEdit> validate(List<TextEdit> edits, int textLength) throws PatchException {
+        List<TextEdit> sorted = new ArrayList<>(edits);
+        sorted.sort(Comparator.comparingInt((TextEdit e) -> e.offset).thenComparingInt(e -> e.length));
+        int previousEnd = 0;
+        for (TextEdit edit : sorted) {
+            if (edit.offset < 0 || edit.length < 0 || edit.end() > textLength) {
+                throw new PatchException("Edit [" + edit.offset + ", " + edit.end() + ") is outside the document (length "
+                        + textLength + ")");
+            }
+            if (edit.offset < previousEnd) {
+                throw new PatchException("Edits overlap at offset " + edit.offset);
+            }
+            previousEnd = edit.end();
+        }
+        List<TextEdit> reversed = new ArrayList<>(sorted.size());
+        for (int i = sorted.size() - 1; i >= 0; i--) {
+            reversed.add(sorted.get(i));
+        }
+        return reversed;
+    }
+}
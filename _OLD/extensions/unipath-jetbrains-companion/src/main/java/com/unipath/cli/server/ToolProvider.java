@@ -0,0 +1,56 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A group of MCP tools served by {@link MCPServer}. Providers describe their
+ * tools for {@code tools/list} and execute {@code tools/call}; long-running
+ * calls should check {@code indicator} so clients can cancel them.
+ */
+interface ToolProvider {
+    void describe(JSONArray tools);
+
+    boolean provides(String toolName);
+
+    /** Runs {@code toolName} against {@code project}, the calling session's project, which may be {@code null}. */
+    JSONObject call(Project project, String toolName, JSONObject arguments, ProgressIndicator indicator);
+
+    static JSONObject tool(String name, String description, JSONObject properties, String... required) {
+        JSONObject schema = new JSONObject();
+        schema.put("type", "object");
+        schema.put("properties", properties);
+        schema.put("required", new JSONArray(required));
+
+        JSONObject tool = new JSONObject();
+        tool.put("name", name);
+        tool.put("description", description);
+        tool.put("inputSchema", schema);
+        return tool;
+    }
+
+    static JSONObject property(String type, String description) {
+        return new JSONObject().put("type", type).put("description", description);
+    }
+
+    static JSONObject textResult(String text) {
+        JSONObject textContent = new JSONObject();
+        textContent.put("type", "text");
+        textContent.put("text", text);
+
+        JSONObject result = new JSONObject();
+        result.put("content", new JSONArray().put(textContent));
+        return result;
+    }
+
+    /** Structured results travel as JSON text, which is what MCP clients forward to the model. */
+    static JSONObject jsonResult(JSONObject json) {
+        return textResult(json.toString());
+    }
+
+    static JSONObject errorResult(String message) {
+        return textResult(message).put("isError", true);
+    }
+}
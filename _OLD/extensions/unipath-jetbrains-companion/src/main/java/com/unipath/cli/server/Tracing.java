@@ -0,0 +1,480 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Per-request timing spans, so a slow request can be pinned on the stage that
+ * took the time: reading the body, waiting for a permit, the write queue, the
+ * EDT, the write action, saving, the VFS refresh, read actions, file lookups or
+ * writing the response.
+ *
+ * {@link Metrics#filter} starts a {@link Trace} for every HTTP request, under
+ * the trace ID of an incoming {@code traceparent} or {@value #TRACE_ID_HEADER}
+ * header if there is one, and returns that ID in {@value #TRACE_ID_HEADER}.
+ * The trace is bound to the handling thread; work handed to another thread
+ * carries it along through {@link #wrap} or {@link Metrics#measureEdtWait}.
+ * Edits coalesced by {@link WriteScheduler} record their shared stages in the
+ * trace of every request in the batch. A trace stays open past its response
+ * while an operation started under it is still running ({@link #holdUntil}),
+ * so async edits are timed in full. Code with no trace bound pays one
+ * thread-local read per span.
+ *
+ * Finished traces go into a ring of the last {@code unipath.trace.recent};
+ * those slower than {@code unipath.trace.slowMs} also into a ring of the last
+ * {@code unipath.trace.slowLog}. {@code /traces} lists them. If
+ * {@code unipath.trace.otlpFile} is set, every trace is also appended to that
+ * file as one line of OTLP/JSON, which OpenTelemetry collectors can import.
+ */
+final class Tracing {
+    private static final Logger LOG = Logger.getInstance(Tracing.class);
+
+    static final String TRACE_ID_HEADER = "X-Unipath-Trace-Id";
+    static final String RECENT_PROPERTY = "unipath.trace.recent";
+    static final String SLOW_MS_PROPERTY = "unipath.trace.slowMs";
+    static final String SLOW_LOG_PROPERTY = "unipath.trace.slowLog";
+    static final String OTLP_FILE_PROPERTY = "unipath.trace.otlpFile";
+
+    /** A batch of thousands of reads shouldn't turn its trace into a memory problem. */
+    private static final int MAX_SPANS = 512;
+    private static final List<Trace> NONE = List.of();
+    private static final ThreadLocal<List<Trace>> CURRENT = ThreadLocal.withInitial(() -> NONE);
+
+    private static final int RECENT_SIZE = Integer.getInteger(RECENT_PROPERTY, 100);
+    private static final long SLOW_NANOS = Long.getLong(SLOW_MS_PROPERTY, 500L) * 1_000_000;
+    private static final int SLOW_LOG_SIZE = Integer.getInteger(SLOW_LOG_PROPERTY, 100);
+    /** Newest last; guarded by {@code Tracing.class}. */
+    private static final ArrayDeque<Trace> RECENT = new ArrayDeque<>();
+    private static final ArrayDeque<Trace> SLOW = new ArrayDeque<>();
+    private static final Exporter EXPORTER = System.getProperty(OTLP_FILE_PROPERTY) == null
+            ? null : new Exporter(System.getProperty(OTLP_FILE_PROPERTY));
+
+    private Tracing() {
+    }
+
+    /** One request: its spans and, once finished, its status. */
+    static final class Trace {
+        final String traceId;
+        /** Span ID of the caller's span from {@code traceparent}, or {@code null}. */
+        final String parentSpanId;
+        final String name;
+        /** ID of the root span, which covers the whole request. */
+        final String spanId = randomHex(8);
+        final long startEpochNanos = System.currentTimeMillis() * 1_000_000;
+        final long start = System.nanoTime();
+        /** Guarded by {@code this}. */
+        private final List<Span> spans = new ArrayList<>();
+        private int droppedSpans;
+        private volatile long end;
+        private volatile int status;
+        /** The request and any operations it started that are still running. */
+        private final AtomicInteger open = new AtomicInteger(1);
+
+        private Trace(String traceId, String parentSpanId, String name) {
+            this.traceId = traceId;
+            this.parentSpanId = parentSpanId;
+            this.name = name;
+        }
+
+        synchronized void add(Span span) {
+            if (spans.size() < MAX_SPANS) {
+                spans.add(span);
+            } else {
+                droppedSpans++;
+            }
+        }
+
+        /**
+         * Ends the request with an HTTP-style {@code status}; 400 and up count
+         * as errors. The trace itself ends once nothing {@linkplain #hold holds} it.
+         */
+        void finish(int status) {
+            this.status = status;
+            release();
+        }
+
+        /** Keeps the trace open until a matching {@link #release}; only while its request runs. */
+        void hold() {
+            open.incrementAndGet();
+        }
+
+        void release() {
+            if (open.decrementAndGet() == 0) {
+                this.end = System.nanoTime();
+                Tracing.finished(this);
+            }
+        }
+
+        long durationNanos() {
+            long finishedAt = end;
+            return (finishedAt == 0 ? System.nanoTime() : finishedAt) - start;
+        }
+
+        synchronized JSONObject toJson() {
+            JSONArray stages = new JSONArray();
+            for (Span span : spans) {
+                stages.put(new JSONObject()
+                        .put("name", span.name)
+                        .put("thread", span.thread)
+                        .put("startMs", millis(span.start - start))
+                        .put("durationMs", millis(span.end - span.start)));
+            }
+            JSONObject json = new JSONObject()
+                    .put("traceId", traceId)
+                    .put("name", name)
+                    .put("status", status)
+                    .put("startEpochMs", startEpochNanos / 1_000_000)
+                    .put("durationMs", millis(durationNanos()))
+                    .put("spans", stages);
+            return droppedSpans == 0 ? json : json.put("droppedSpans", droppedSpans);
+        }
+
+        /** This trace as an OTLP/JSON {@code ExportTraceServiceRequest}. */
+        synchronized JSONObject toOtlp() {
+            JSONArray otlpSpans = new JSONArray();
+            JSONObject root = otlpSpan(spanId, parentSpanId, name, 2, start, start + durationNanos(), null);
+            if (status >= 400) {
+                root.put("status", new JSONObject().put("code", 2).put("message", "HTTP " + status));
+            }
+            root.put("attributes", new JSONArray().put(attribute("http.response.status_code", status)));
+            otlpSpans.put(root);
+            for (Span span : spans) {
+                otlpSpans.put(otlpSpan(randomHex(8), spanId, span.name, 1, span.start, span.end,
+                        new JSONArray().put(attribute("thread.name", span.thread))));
+            }
+            JSONObject resource = new JSONObject().put("attributes",
+                    new JSONArray().put(attribute("service.name", "unipath-jetbrains-companion")));
+            JSONObject scopeSpans = new JSONObject()
+                    .put("scope", new JSONObject().put("name", Tracing.class.getName()))
+                    .put("spans", otlpSpans);
+            JSONObject resourceSpans = new JSONObject()
+                    .put("resource", resource)
+                    .put("scopeSpans", new JSONArray().put(scopeSpans));
+            return new JSONObject().put("resourceSpans", new JSONArray().put(resourceSpans));
+        }
+
+        private JSONObject otlpSpan(String spanId, String parentId, String spanName, int kind, long from, long to,
+                                    JSONArray attributes) {
+            // OTLP/JSON carries 64-bit integers as strings
+            JSONObject span = new JSONObject()
+                    .put("traceId", traceId)
+                    .put("spanId", spanId)
+                    .put("name", spanName)
+                    .put("kind", kind)
+                    .put("startTimeUnixNano", String.valueOf(startEpochNanos + (from - start)))
+                    .put("endTimeUnixNano", String.valueOf(startEpochNanos + (to - start)));
+            if (parentId != null) {
+                span.put("parentSpanId", parentId);
+            }
+            return attributes == null ? span : span.put("attributes", attributes);
+        }
+    }
+
+    /** One timed stage; closing it records it in every trace bound when it was opened. */
+    static final class Span implements AutoCloseable {
+        private static final Span NOOP = new Span(NONE, null, 0);
+
+        private final List<Trace> traces;
+        final String name;
+        final long start;
+        private long end;
+        private String thread;
+
+        private Span(List<Trace> traces, String name, long start) {
+            this.traces = traces;
+            this.name = name;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            if (traces.isEmpty() || thread != null) {
+                return;
+            }
+            end = System.nanoTime();
+            thread = Thread.currentThread().getName();
+            for (Trace trace : traces) {
+                trace.add(this);
+            }
+        }
+    }
+
+    /** Restores the previously bound traces when closed. */
+    static final class Scope implements AutoCloseable {
+        private final List<Trace> previous;
+
+        private Scope(List<Trace> previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Starts a trace named {@code name}, continuing the caller's trace if the
+     * request carries a {@code traceparent} or {@value #TRACE_ID_HEADER}. It
+     * isn't bound to any thread yet.
+     */
+    static Trace start(String name, HttpExchange exchange) {
+        String traceparent = exchange.getRequestHeaders().getFirst("traceparent");
+        if (traceparent != null) {
+            // version-traceid-parentid-flags
+            String[] parts = traceparent.trim().split("-");
+            if (parts.length >= 4 && isId(parts[1], 32) && isId(parts[2], 16)) {
+                return new Trace(parts[1], parts[2], name);
+            }
+        }
+        String traceId = exchange.getRequestHeaders().getFirst(TRACE_ID_HEADER);
+        if (traceId != null && isId(traceId.trim().toLowerCase(), 32)) {
+            return new Trace(traceId.trim().toLowerCase(), null, name);
+        }
+        return start(name);
+    }
+
+    /** Starts a trace with a new ID. */
+    static Trace start(String name) {
+        return new Trace(randomHex(16), null, name);
+    }
+
+    /** The traces bound to this thread, for handing to {@link #bind} on another one. */
+    static List<Trace> current() {
+        return CURRENT.get();
+    }
+
+    static Scope bind(Trace trace) {
+        return bind(List.of(trace));
+    }
+
+    static Scope bind(List<Trace> traces) {
+        Scope scope = new Scope(CURRENT.get());
+        CURRENT.set(traces);
+        return scope;
+    }
+
+    /** Binds the traces of all {@code sources} at once, for work done on behalf of several requests. */
+    static Scope bindAll(Collection<List<Trace>> sources) {
+        List<Trace> traces = new ArrayList<>();
+        for (List<Trace> source : sources) {
+            for (Trace trace : source) {
+                if (!traces.contains(trace)) {
+                    traces.add(trace);
+                }
+            }
+        }
+        return bind(traces.isEmpty() ? NONE : traces);
+    }
+
+    /** Opens a span in the bound traces; use with try-with-resources. */
+    static Span span(String name) {
+        List<Trace> traces = CURRENT.get();
+        return traces.isEmpty() ? Span.NOOP : new Span(traces, name, System.nanoTime());
+    }
+
+    /** Records a stage that began at {@code startNanos} and ends now, such as time spent queued. */
+    static void record(String name, long startNanos) {
+        List<Trace> traces = CURRENT.get();
+        if (!traces.isEmpty()) {
+            new Span(traces, name, startNanos).close();
+        }
+    }
+
+    /** Keeps the bound traces open until {@code work} completes, for work that outlives its request. */
+    static void holdUntil(CompletableFuture<?> work) {
+        List<Trace> traces = CURRENT.get();
+        if (traces.isEmpty()) {
+            return;
+        }
+        traces.forEach(Trace::hold);
+        work.whenComplete((result, error) -> traces.forEach(Trace::release));
+    }
+
+    /** {@code task} with this thread's traces bound while it runs, wherever that is. */
+    static Runnable wrap(Runnable task) {
+        List<Trace> traces = CURRENT.get();
+        if (traces.isEmpty()) {
+            return task;
+        }
+        return () -> {
+            try (Scope scope = bind(traces)) {
+                task.run();
+            }
+        };
+    }
+
+    static <T> Supplier<T> wrap(Supplier<T> task) {
+        List<Trace> traces = CURRENT.get();
+        if (traces.isEmpty()) {
+            return task;
+        }
+        return () -> {
+            try (Scope scope = bind(traces)) {
+                return task.get();
+            }
+        };
+    }
+
+    private static void finished(Trace trace) {
+        synchronized (Tracing.class) {
+            add(RECENT, trace, RECENT_SIZE);
+            if (trace.durationNanos() >= SLOW_NANOS) {
+                add(SLOW, trace, SLOW_LOG_SIZE);
+            }
+        }
+        if (EXPORTER != null) {
+            EXPORTER.export(trace);
+        }
+    }
+
+    private static void add(ArrayDeque<Trace> ring, Trace trace, int capacity) {
+        if (capacity <= 0) {
+            return;
+        }
+        if (ring.size() >= capacity) {
+            ring.removeFirst();
+        }
+        ring.addLast(trace);
+    }
+
+    /**
+     * Lists finished traces, newest first: {@code slow=true} for the slow
+     * log only, {@code traceId} for one trace, {@code limit} to cap the count
+     * and {@code format=otlp} for OTLP/JSON.
+     */
+    static HttpHandler handler() {
+        return exchange -> {
+            Map<String, String> params = FileTransfer.parseQuery(exchange.getRequestURI().getRawQuery());
+            int limit;
+            try {
+                limit = Integer.parseInt(params.getOrDefault("limit", String.valueOf(Integer.MAX_VALUE)));
+            } catch (NumberFormatException e) {
+                limit = Integer.MAX_VALUE;
+            }
+            List<Trace> traces = new ArrayList<>();
+            String traceId = params.get("traceId");
+            synchronized (Tracing.class) {
+                Iterator<Trace> newestFirst = ("true".equals(params.get("slow")) ? SLOW : RECENT).descendingIterator();
+                while (newestFirst.hasNext() && traces.size() < limit) {
+                    Trace trace = newestFirst.next();
+                    if (traceId == null || traceId.equalsIgnoreCase(trace.traceId)) {
+                        traces.add(trace);
+                    }
+                }
+            }
+            JSONObject response = new JSONObject();
+            if ("otlp".equals(params.get("format"))) {
+                JSONArray resourceSpans = new JSONArray();
+                for (Trace trace : traces) {
+                    resourceSpans.putAll(trace.toOtlp().getJSONArray("resourceSpans"));
+                }
+                response.put("resourceSpans", resourceSpans);
+            } else {
+                JSONArray list = new JSONArray();
+                traces.forEach(trace -> list.put(trace.toJson()));
+                response.put("slowMs", SLOW_NANOS / 1_000_000);
+                response.put("traces", list);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            JsonStreams.write(exchange, 200, response);
+        };
+    }
+
+    /** Appends finished traces to the OTLP file on its own thread, so requests never wait on the disk. */
+    private static final class Exporter {
+        private final String path;
+        private final ExecutorService thread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread exporter = new Thread(runnable, "unipath-trace-export");
+            exporter.setDaemon(true);
+            return exporter;
+        });
+        private Writer out;
+        private boolean failed;
+
+        Exporter(String path) {
+            this.path = path;
+        }
+
+        void export(Trace trace) {
+            thread.execute(() -> write(trace));
+        }
+
+        private void write(Trace trace) {
+            if (failed) {
+                return;
+            }
+            try {
+                if (out == null) {
+                    out = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                trace.toOtlp().write(out);
+                out.write('\n');
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                LOG.warn("Could not export traces to " + path + "; trace export is off", e);
+            }
+        }
+    }
+
+    private static JSONObject attribute(String key, String value) {
+        return new JSONObject().put("key", key).put("value", new JSONObject().put("stringValue", value));
+    }
+
+    private static JSONObject attribute(String key, long value) {
+        return new JSONObject().put("key", key).put("value", new JSONObject().put("intValue", String.valueOf(value)));
+    }
+
+    private static boolean isId(String value, int hexLength) {
+        if (value.length() != hexLength) {
+            return false;
+        }
+        boolean zero = true;
+        for (int i = 0; i < hexLength; i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+            zero &= c == '0';
+        }
+        return !zero;
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++) {
+            int b = random.nextInt(256);
+            hex.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+}
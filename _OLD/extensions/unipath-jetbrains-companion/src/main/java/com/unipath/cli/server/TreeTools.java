@@ -0,0 +1,49 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import static com.unipath.cli.server.ToolProvider.property;
+import static com.unipath.cli.server.ToolProvider.tool;
+
+/** The workspace file tree from {@link FileTree}, in full or as the changes since a version. */
+final class TreeTools implements ToolProvider {
+    static final String GET_FILE_TREE = "getFileTree";
+
+    private final ProjectRegistry projects;
+
+    TreeTools(ProjectRegistry projects) {
+        this.projects = projects;
+    }
+
+    @Override
+    public void describe(JSONArray tools) {
+        tools.put(tool(GET_FILE_TREE, "(IDE Tool) Files and directories of the project as the IDE indexes them, "
+                        + "without excluded directories; pass the epoch and version of an earlier result to get only what changed",
+                new JSONObject()
+                        .put("epoch", property("string", "Epoch of the previous result that since comes from"))
+                        .put("since", property("integer", "Version of a previous result; omit for the whole tree"))));
+    }
+
+    @Override
+    public boolean provides(String toolName) {
+        return GET_FILE_TREE.equals(toolName);
+    }
+
+    @Override
+    public JSONObject call(Project project, String toolName, JSONObject arguments, ProgressIndicator indicator) {
+        ProjectRegistry.Entry entry = project == null ? null : projects.find(project.getBasePath());
+        if (entry == null) {
+            return ToolProvider.errorResult("No active project");
+        }
+        try (Tracing.Span span = Tracing.span("tree.json")) {
+            return ToolProvider.textResult(entry.tree.json(arguments.optString("epoch", null),
+                    arguments.optLong("since", -1), indicator));
+        } catch (ProcessCanceledException e) {
+            return ToolProvider.errorResult(toolName + " was cancelled");
+        }
+    }
+}
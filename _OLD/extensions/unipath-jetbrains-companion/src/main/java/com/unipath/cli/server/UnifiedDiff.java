@@ -0,0 +1,181 @@
+package com.unipath.cli.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts a single-file unified diff into offset edits against the current
+ * document text.
+ *
+ * Hunks are located at the line numbers from their header first; if the
+ * context doesn't match there (the file moved on since the diff was made) we
+ * search outwards up to {@link #FUZZ_LINES} lines, like {@code patch} does.
+ */
+final class UnifiedDiff {
+    static final int FUZZ_LINES = 200;
+
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*$");
+
+    private UnifiedDiff() {
+    }
+
+    private static final class Hunk {
+        final int oldStart;
+        final List<String> oldLines = new ArrayList<>();
+        final List<String> newLines = new ArrayList<>();
+        boolean oldMissingNewline;
+        boolean newMissingNewline;
+
+        Hunk(int oldStart) {
+            this.oldStart = oldStart;
+        }
+    }
+
+    static List<TextEdit> toEdits(CharSequence text, String patch) throws PatchException {
+        List<Hunk> hunks = parse(patch);
+        if (hunks.isEmpty()) {
+            throw new PatchException("Patch contains no hunks");
+        }
+
+        List<Integer> lineStarts = lineStarts(text);
+        int lineCount = lineStarts.size() - 1;
+        List<TextEdit> edits = new ArrayList<>(hunks.size());
+        int minLine = 0;
+        for (Hunk hunk : hunks) {
+            // For pure insertions the header names the line *before* the insertion point
+            int expected = hunk.oldLines.isEmpty() ? hunk.oldStart : hunk.oldStart - 1;
+            int line = locate(text, lineStarts, lineCount, hunk, Math.max(expected, minLine), minLine);
+            if (line < 0) {
+                throw new PatchException("Hunk at line " + hunk.oldStart + " does not match the current document");
+            }
+
+            int start = lineStarts.get(line);
+            int end = lineStarts.get(Math.min(line + hunk.oldLines.size(), lineCount));
+            if (hunk.oldMissingNewline && end > start && text.charAt(end - 1) == '\n') {
+                end--;
+            }
+            StringBuilder replacement = new StringBuilder();
+            for (int i = 0; i < hunk.newLines.size(); i++) {
+                replacement.append(hunk.newLines.get(i));
+                if (i < hunk.newLines.size() - 1 || !hunk.newMissingNewline) {
+                    replacement.append('\n');
+                }
+            }
+            edits.add(new TextEdit(start, end - start, replacement.toString()));
+            minLine = line + hunk.oldLines.size();
+        }
+        return edits;
+    }
+
+    private static List<Hunk> parse(String patch) throws PatchException {
+        List<Hunk> hunks = new ArrayList<>();
+        Hunk current = null;
+        char lastKind = ' ';
+        // A trailing newline would otherwise read as one extra empty context line
+        String body = patch.endsWith("\n") ? patch.substring(0, patch.length() - 1) : patch;
+        for (String raw : body.split("\n", -1)) {
+            String line = raw.endsWith("\r") ? raw.substring(0, raw.length() - 1) : raw;
+            Matcher header = HUNK_HEADER.matcher(line);
+            if (header.matches()) {
+                current = new Hunk(Integer.parseInt(header.group(1)));
+                hunks.add(current);
+                continue;
+            }
+            if (current == null) {
+                // File headers (diff --git, ---, +++, index ...) before the first hunk
+                continue;
+            }
+            if (line.startsWith("\\")) {
+                // "\ No newline at end of file" refers to the line just before it
+                if (lastKind != '+') {
+                    current.oldMissingNewline = true;
+                }
+                if (lastKind != '-') {
+                    current.newMissingNewline = true;
+                }
+                continue;
+            }
+            if (line.isEmpty()) {
+                // Some tools strip the leading space from empty context lines
+                current.oldLines.add("");
+                current.newLines.add("");
+                lastKind = ' ';
+                continue;
+            }
+            char kind = line.charAt(0);
+            String content = line.substring(1);
+            switch (kind) {
+                case ' ':
+                    current.oldLines.add(content);
+                    current.newLines.add(content);
+                    break;
+                case '-':
+                    current.oldLines.add(content);
+                    break;
+                case '+':
+                    current.newLines.add(content);
+                    break;
+                default:
+                    if (line.startsWith("diff ") || line.startsWith("--- ") || line.startsWith("+++ ")) {
+                        throw new PatchException("Only single-file patches are supported");
+                    }
+                    throw new PatchException("Unexpected patch line: " + line);
+            }
+            lastKind = kind;
+        }
+        return hunks;
+    }
+
+    private static int locate(CharSequence text, List<Integer> lineStarts, int lineCount, Hunk hunk,
+                              int expected, int minLine) {
+        for (int delta = 0; delta <= FUZZ_LINES; delta++) {
+            int after = expected + delta;
+            if (after <= lineCount && matches(text, lineStarts, lineCount, hunk.oldLines, after)) {
+                return after;
+            }
+            int before = expected - delta;
+            if (delta > 0 && before >= minLine && matches(text, lineStarts, lineCount, hunk.oldLines, before)) {
+                return before;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(CharSequence text, List<Integer> lineStarts, int lineCount, List<String> lines, int at) {
+        if (at + lines.size() > lineCount) {
+            return false;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            int start = lineStarts.get(at + i);
+            int end = lineStarts.get(at + i + 1);
+            if (end > start && text.charAt(end - 1) == '\n') {
+                end--;
+            }
+            if (end > start && text.charAt(end - 1) == '\r') {
+                end--;
+            }
+            String expected = lines.get(i);
+            if (end - start != expected.length() || !expected.contentEquals(text.subSequence(start, end))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Offsets of each line start, plus a final entry for the end of the text. */
+    private static List<Integer> lineStarts(CharSequence text) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n' && i + 1 < text.length()) {
+                starts.add(i + 1);
+            }
+        }
+        if (text.length() > 0) {
+            starts.add(text.length());
+        }
+        return starts;
+    }
+}
@@ -4,13 +4,10 @@ import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.openapi.editor.Document;
-import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
@@ -18,20 +15,33 @@ import org.json.JSONObject;
 import org.json.JSONArray;
 
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.Executors;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.unipath.cli.server.ConcurrencyLimitedHandler.limit;
+import static com.unipath.cli.server.Metrics.instrument;
 
 @Service(Service.Level.APP)
 public final class UnipathServer implements Disposable {
     private static final Logger LOG = Logger.getInstance(UnipathServer.class);
-    private static final int PORT = 62325;
+    static final String PORT_PROPERTY = "unipath.http.port";
+    /** Names the project a request is for, by workspace path; otherwise it goes by file path. */
+    static final String WORKSPACE_HEADER = "X-Unipath-Workspace";
     private HttpServer server;
+    private ExecutorService executor;
     private static UnipathServer instance;
+    private final AtomicBoolean started = new AtomicBoolean();
+    /** Guarded by {@code this}, as is starting the server. */
+    private boolean disposed;
 
     public UnipathServer() {
         instance = this;
-        startServer();
     }
 
     public static UnipathServer getInstance() {
@@ -41,32 +51,53 @@ public final class UnipathServer implements Disposable {
         return instance;
     }
 
+    /**
+     * Binds the server on the calling thread, which {@link MCPServer#start}
+     * keeps off the startup path. Only the first call does anything.
+     */
+    synchronized void start() {
+        if (disposed || !started.compareAndSet(false, true)) {
+            LOG.debug("UNIPATH server already started");
+            return;
+        }
+        startServer();
+    }
+
     private void startServer() {
         try {
-            server = HttpServer.create(new InetSocketAddress(PORT), 0);
-            server.setExecutor(Executors.newCachedThreadPool());
+            server = ServerPorts.bind(PORT_PROPERTY);
+            executor = HandlerExecutors.lazy("unipath-http");
+            server.setExecutor(executor);
             
             // Register handlers
             server.createContext("/health", new HealthHandler());
-            server.createContext("/files", new FilesHandler());
-            server.createContext("/file", new FileHandler());
-            server.createContext("/selection", new SelectionHandler());
-            server.createContext("/apply-diff", new ApplyDiffHandler());
-            server.createContext("/open-file", new OpenFileHandler());
+            server.createContext("/metrics", Metrics.handler());
+            server.createContext("/traces", Tracing.handler());
+            instrument(server.createContext("/files", limit(new FilesHandler())), "http");
+            instrument(server.createContext("/file", limit(new FileHandler())), "http");
+            instrument(server.createContext("/selection", limit(new SelectionHandler())), "http");
+            instrument(server.createContext("/apply-diff", limit(new ApplyDiffHandler())), "http");
+            instrument(server.createContext("/open-file", limit(new OpenFileHandler())), "http");
+            instrument(server.createContext("/batch", limit(new BatchHandler())), "http");
+            instrument(server.createContext("/operations", limit(new OperationsHandler())), "http");
+            instrument(server.createContext("/tree", limit(new TreeHandler())), "http");
             
             server.start();
-            LOG.info("UNIPATH CLI Companion server started on port " + PORT);
+            LOG.info("UNIPATH CLI Companion server started on port " + server.getAddress().getPort());
+            MCPServer.getInstance().projects().endpoint("httpPort", server.getAddress().getPort());
         } catch (IOException e) {
             LOG.error("Failed to start UNIPATH server", e);
         }
     }
 
     @Override
-    public void dispose() {
+    public synchronized void dispose() {
+        disposed = true;
         if (server != null) {
             server.stop(0);
             LOG.info("UNIPATH CLI Companion server stopped");
         }
+        HandlerExecutors.shutdown(executor);
     }
 
     private static class HealthHandler implements HttpHandler {
@@ -77,33 +108,35 @@ public final class UnipathServer implements Disposable {
             response.put("version", "1.0.0");
             response.put("ide", "JetBrains");
             
-            sendResponse(exchange, 200, response.toString());
+            sendResponse(exchange, 200, response);
         }
     }
 
     private static class FilesHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            Project project = getActiveProject();
+            ProjectRegistry.Entry project = route(exchange, null);
             if (project == null) {
-                sendResponse(exchange, 404, "{\"error\":\"No active project\"}");
+                sendNoProject(exchange);
                 return;
             }
 
             JSONArray files = new JSONArray();
-            VirtualFile[] openFiles = FileEditorManager.getInstance(project).getOpenFiles();
-            
-            for (VirtualFile file : openFiles) {
+            ContextSnapshot context;
+            try (Tracing.Span span = Tracing.span("context.current")) {
+                context = project.tracker.current();
+            }
+            context.openFiles.forEach((path, name) -> {
                 JSONObject fileObj = new JSONObject();
-                fileObj.put("path", file.getPath());
-                fileObj.put("name", file.getName());
-                fileObj.put("active", isActiveFile(project, file));
+                fileObj.put("path", path);
+                fileObj.put("name", name);
+                fileObj.put("active", path.equals(context.activeFile));
                 files.put(fileObj);
-            }
+            });
 
             JSONObject response = new JSONObject();
             response.put("files", files);
-            sendResponse(exchange, 200, response.toString());
+            sendResponse(exchange, 200, response);
         }
     }
 
@@ -115,13 +148,13 @@ public final class UnipathServer implements Disposable {
                 return;
             }
 
-            String query = exchange.getRequestURI().getQuery();
-            if (query == null || !query.startsWith("path=")) {
+            Map<String, String> params = FileTransfer.parseQuery(exchange.getRequestURI().getRawQuery());
+            String path = params.get("path");
+            if (path == null || path.isEmpty()) {
                 sendResponse(exchange, 400, "{\"error\":\"Missing path parameter\"}");
                 return;
             }
 
-            String path = java.net.URLDecoder.decode(query.substring(5), StandardCharsets.UTF_8);
             File file = new File(path);
             
             if (!file.exists()) {
@@ -129,51 +162,108 @@ public final class UnipathServer implements Disposable {
                 return;
             }
 
+            // Raw mode streams bytes instead of JSON; a Range header implies it
+            String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+            boolean raw = "true".equals(params.get("raw")) || "1".equals(params.get("raw")) || rangeHeader != null;
+
             try {
-                String content = new String(java.nio.file.Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
-                JSONObject response = new JSONObject();
-                response.put("content", content);
-                response.put("path", path);
-                sendResponse(exchange, 200, response.toString());
+                // Small files and unsaved documents are served from the snapshot cache
+                DocumentCache.Snapshot snapshot;
+                try (Tracing.Span span = Tracing.span("file.lookup")) {
+                    snapshot = DocumentCache.getInstance().lookup(file);
+                }
+                if (snapshot != null) {
+                    respond(exchange, params, path, rangeHeader, raw, snapshot.etag(), FileTransfer.of(snapshot.bytes));
+                    return;
+                }
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    respond(exchange, params, path, rangeHeader, raw, DocumentCache.weakEtag(file),
+                            FileTransfer.of(channel));
+                }
             } catch (IOException e) {
                 sendResponse(exchange, 500, "{\"error\":\"Failed to read file\"}");
             }
         }
+
+        private void respond(HttpExchange exchange, Map<String, String> params, String path, String rangeHeader,
+                             boolean raw, String etag, FileTransfer.Source source) throws IOException {
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            long size = source.size();
+            FileTransfer.Range range = FileTransfer.resolve(rangeHeader, params.get("offset"), params.get("length"), size);
+            if (range == null) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                sendResponse(exchange, 416, "{\"error\":\"Requested range not satisfiable\"}");
+                return;
+            }
+
+            if (raw) {
+                try (Tracing.Span span = Tracing.span("response.write")) {
+                    sendFileWindow(exchange, source, range, rangeHeader != null);
+                }
+                return;
+            }
+
+            // Stream the content into the JSON envelope instead of building it as a String
+            setJsonHeaders(exchange);
+            try (Tracing.Span span = Tracing.span("response.write");
+                 Writer writer = JsonStreams.openWriter(exchange, 200)) {
+                writer.write("{\"content\":");
+                source.writeJson(range, writer);
+                writer.write(",\"path\":");
+                JSONObject.quote(path, writer);
+                writer.write(",\"etag\":");
+                JSONObject.quote(etag, writer);
+                if (!range.isWholeFile()) {
+                    writer.write(",\"offset\":" + range.start + ",\"length\":" + range.length + ",\"size\":" + range.size);
+                }
+                writer.write('}');
+            }
+        }
+
+        private void sendFileWindow(HttpExchange exchange, FileTransfer.Source source, FileTransfer.Range range,
+                                    boolean partial) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("X-File-Size", String.valueOf(range.size));
+            if (partial || !range.isWholeFile()) {
+                exchange.getResponseHeaders().set("Content-Range", range.contentRange());
+            }
+            int code = partial ? 206 : 200;
+            // A zero Content-Length would mean chunked to HttpServer, -1 means no body
+            exchange.sendResponseHeaders(code, range.length == 0 ? -1 : range.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                source.writeTo(range, os);
+            }
+        }
     }
 
     private static class SelectionHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            Project project = getActiveProject();
+            ProjectRegistry.Entry project = route(exchange, null);
             if (project == null) {
-                sendResponse(exchange, 404, "{\"error\":\"No active project\"}");
+                sendNoProject(exchange);
                 return;
             }
 
-            Editor editor = FileEditorManager.getInstance(project).getSelectedTextEditor();
-            if (editor == null) {
+            JSONObject response;
+            try (Tracing.Span span = Tracing.span("context.current")) {
+                response = selectionJson(project.tracker.current());
+            }
+            if (response == null) {
                 sendResponse(exchange, 404, "{\"error\":\"No active editor\"}");
                 return;
             }
 
-            JSONObject response = new JSONObject();
-            VirtualFile file = FileDocumentManager.getInstance().getFile(editor.getDocument());
-            if (file != null) {
-                response.put("file", file.getPath());
-            }
-
-            String selectedText = editor.getSelectionModel().getSelectedText();
-            if (selectedText != null && !selectedText.isEmpty()) {
-                response.put("selection", selectedText);
-                response.put("hasSelection", true);
-                response.put("start", editor.getSelectionModel().getSelectionStart());
-                response.put("end", editor.getSelectionModel().getSelectionEnd());
-            } else {
-                response.put("hasSelection", false);
-                response.put("cursor", editor.getCaretModel().getOffset());
-            }
-
-            sendResponse(exchange, 200, response.toString());
+            sendResponse(exchange, 200, response);
         }
     }
 
@@ -185,30 +275,21 @@ public final class UnipathServer implements Disposable {
                 return;
             }
 
-            String body = readRequestBody(exchange);
-            JSONObject request = new JSONObject(body);
+            JSONObject request = JsonStreams.readObject(exchange);
             
             String filePath = request.getString("file");
-            String content = request.getString("content");
-            
-            ApplicationManager.getApplication().invokeLater(() -> {
-                ApplicationManager.getApplication().runWriteAction(() -> {
-                    try {
-                        File file = new File(filePath);
-                        java.nio.file.Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
-                        
-                        // Refresh the file in IDE
-                        VirtualFile vFile = com.intellij.openapi.vfs.LocalFileSystem.getInstance().refreshAndFindFileByPath(filePath);
-                        if (vFile != null) {
-                            vFile.refresh(false, false);
-                        }
-                    } catch (IOException e) {
-                        LOG.error("Failed to apply diff", e);
-                    }
-                });
-            });
+            Project project = projectOf(route(exchange, filePath));
+            if (project == null) {
+                sendNoProject(exchange);
+                return;
+            }
 
-            sendResponse(exchange, 200, "{\"status\":\"ok\"}");
+            MCPServer mcp = MCPServer.getInstance();
+            CompletableFuture<JSONObject> applied = mcp.writes()
+                    .submit(project, new DocumentEdits.Request(filePath, request), request.optString("actionId", null))
+                    .thenApply(DocumentEdits.Result::toJson);
+            Operations.Operation operation = mcp.operations().track("applyEdits", filePath, sessionId(exchange), applied);
+            respond(exchange, operation, request);
         }
     }
 
@@ -220,67 +301,370 @@ public final class UnipathServer implements Disposable {
                 return;
             }
 
-            String body = readRequestBody(exchange);
-            JSONObject request = new JSONObject(body);
+            JSONObject request = JsonStreams.readObject(exchange);
             String filePath = request.getString("file");
             
-            Project project = getActiveProject();
+            Project project = projectOf(route(exchange, filePath));
             if (project == null) {
-                sendResponse(exchange, 404, "{\"error\":\"No active project\"}");
+                sendNoProject(exchange);
                 return;
             }
 
-            ApplicationManager.getApplication().invokeLater(() -> {
-                VirtualFile file = com.intellij.openapi.vfs.LocalFileSystem.getInstance().findFileByPath(filePath);
-                if (file != null) {
+            Operations.Operation operation = MCPServer.getInstance().operations()
+                    .start("openFile", filePath, sessionId(exchange));
+            ApplicationManager.getApplication().invokeLater(Metrics.measureEdtWait(() -> {
+                try {
+                    VirtualFile file = com.intellij.openapi.vfs.LocalFileSystem.getInstance().findFileByPath(filePath);
+                    if (file == null) {
+                        operation.fail(new FileNotFoundException(filePath));
+                        return;
+                    }
                     FileEditorManager.getInstance(project).openFile(file, true);
+                    operation.complete(new JSONObject().put("status", "ok").put("path", filePath));
+                } catch (RuntimeException e) {
+                    operation.fail(e);
                 }
-            });
+            }));
+
+            respond(exchange, operation, request);
+        }
+    }
+
+    /** Reports the state of an operation; {@code waitMs} long-polls until it finishes. */
+    private static class OperationsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = FileTransfer.parseQuery(exchange.getRequestURI().getRawQuery());
+            Operations.Operation operation = MCPServer.getInstance().operations().get(params.get("id"));
+            if (operation == null) {
+                sendResponse(exchange, 404, "{\"error\":\"Unknown or expired operation\"}");
+                return;
+            }
+            long waitMs;
+            try {
+                waitMs = Long.parseLong(params.getOrDefault("waitMs", "0"));
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "{\"error\":\"Invalid waitMs\"}");
+                return;
+            }
+            JSONObject state;
+            try (Tracing.Span span = Tracing.span("operation.wait")) {
+                state = operation.await(waitMs);
+            }
+            sendResponse(exchange, 200, state);
+        }
+    }
 
-            sendResponse(exchange, 200, "{\"status\":\"ok\"}");
+    /**
+     * The workspace file tree; {@code since}, with the {@code epoch} it came
+     * from, asks for the changes after that version only.
+     */
+    private static class TreeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            ProjectRegistry.Entry project = route(exchange, null);
+            if (project == null) {
+                sendNoProject(exchange);
+                return;
+            }
+            Map<String, String> params = FileTransfer.parseQuery(exchange.getRequestURI().getRawQuery());
+            long since;
+            try {
+                since = Long.parseLong(params.getOrDefault("since", "-1"));
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "{\"error\":\"Invalid since\"}");
+                return;
+            }
+            String tree;
+            try (Tracing.Span span = Tracing.span("tree.json")) {
+                tree = project.tree.json(params.get("epoch"), since, new EmptyProgressIndicator());
+            }
+            sendResponse(exchange, 200, tree);
         }
     }
 
-    private static void sendResponse(HttpExchange exchange, int code, String response) throws IOException {
+    /**
+     * Several operations in one round trip. Edits are applied first, all in a
+     * single write command; file reads then run in parallel and, like the
+     * selection, see the edited state. All edits must be in one project, since
+     * they share that write command. If the edits outlast {@code timeoutMs},
+     * the reply is a 202 with only their operation ID.
+     */
+    private static class BatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            JSONObject request = JsonStreams.readObject(exchange);
+            ProjectRegistry.Entry routed = route(exchange, firstPath(request));
+            JSONArray edits = request.optJSONArray("edits");
+            boolean editing = edits != null && !edits.isEmpty();
+            // Reads don't need a project, but edits and a named workspace do
+            if (routed == null && (editing || workspace(exchange) != null)) {
+                sendNoProject(exchange);
+                return;
+            }
+            if (editing && workspace(exchange) == null && spansProjects(edits, routed)) {
+                sendResponse(exchange, 400,
+                        "{\"error\":\"Batch edits files of several projects; send one batch per project\"}");
+                return;
+            }
+            Project project = projectOf(routed);
+            JSONObject response = new JSONObject();
+
+            if (editing) {
+                JSONObject applied = applyEdits(exchange, project, request, edits);
+                response.put("edits", applied);
+                // Reads would not see edits that are still pending; the caller follows up on the operation instead
+                if ("pending".equals(applied.getString("status"))) {
+                    sendResponse(exchange, 202, response);
+                    return;
+                }
+            }
+
+            JSONArray reads = request.optJSONArray("reads");
+            if (reads != null && !reads.isEmpty()) {
+                List<CompletableFuture<JSONObject>> pending = new ArrayList<>(reads.length());
+                for (int i = 0; i < reads.length(); i++) {
+                    Object item = reads.get(i);
+                    JSONObject read = item instanceof JSONObject ? (JSONObject) item : new JSONObject().put("path", item);
+                    pending.add(CompletableFuture.supplyAsync(Tracing.wrap(() -> readFile(read)), HandlerExecutors.batch()));
+                }
+                JSONArray files = new JSONArray();
+                for (CompletableFuture<JSONObject> future : pending) {
+                    files.put(future.join());
+                }
+                response.put("files", files);
+            }
+
+            if (request.optBoolean("selection", false)) {
+                JSONObject selection;
+                try (Tracing.Span span = Tracing.span("context.current")) {
+                    selection = routed == null ? null : selectionJson(routed.tracker.current());
+                }
+                response.put("selection", selection == null ? JSONObject.NULL : selection);
+            }
+
+            sendResponse(exchange, 200, response);
+        }
+
+        private JSONObject applyEdits(HttpExchange exchange, Project project, JSONObject request, JSONArray edits) {
+            List<DocumentEdits.Request> requests = new ArrayList<>(edits.length());
+            try {
+                for (int i = 0; i < edits.length(); i++) {
+                    JSONObject edit = edits.getJSONObject(i);
+                    requests.add(new DocumentEdits.Request(edit.getString("file"), edit));
+                }
+            } catch (org.json.JSONException e) {
+                return new JSONObject().put("status", "error").put("error", e.getMessage());
+            }
+            CompletableFuture<JSONObject> applied = MCPServer.getInstance().writes()
+                    .submit(project, requests, request.optString("actionId", null))
+                    .thenApply(results -> {
+                        JSONArray json = new JSONArray();
+                        results.forEach(result -> json.put(result.toJson()));
+                        return new JSONObject().put("status", "ok").put("results", json);
+                    });
+            Operations.Operation operation = MCPServer.getInstance().operations()
+                    .track("applyEdits", requests.get(0).path, sessionId(exchange), applied);
+            JSONObject state;
+            try (Tracing.Span span = Tracing.span("operation.wait")) {
+                state = operation.await(request.optLong("timeoutMs", Operations.DEFAULT_WAIT_MS));
+            }
+            switch (state.getString("state")) {
+                case "succeeded":
+                    return state.getJSONObject("result");
+                case "failed":
+                    JSONObject error = state.getJSONObject("error");
+                    return new JSONObject().put("status", "error").put("error", "notFound".equals(error.getString("code"))
+                            ? "File not found: " + error.getString("message") : error.getString("message"));
+                default:
+                    return new JSONObject().put("status", "pending").put("operationId", operation.id);
+            }
+        }
+
+        private JSONObject readFile(JSONObject read) {
+            String path = read.optString("path");
+            JSONObject result = new JSONObject();
+            result.put("path", path);
+            File file = new File(path);
+            if (path.isEmpty() || !file.exists()) {
+                return result.put("error", "File not found");
+            }
+            try {
+                DocumentCache.Snapshot snapshot;
+                try (Tracing.Span span = Tracing.span("file.lookup")) {
+                    snapshot = DocumentCache.getInstance().lookup(file);
+                }
+                if (snapshot != null) {
+                    return readWindow(result, read, snapshot.etag(), FileTransfer.of(snapshot.bytes));
+                }
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    return readWindow(result, read, DocumentCache.weakEtag(file), FileTransfer.of(channel));
+                }
+            } catch (IOException e) {
+                return result.put("error", "Failed to read file");
+            }
+        }
+
+        private JSONObject readWindow(JSONObject result, JSONObject read, String etag, FileTransfer.Source source)
+                throws IOException {
+            result.put("etag", etag);
+            if (etag.equals(read.optString("etag", null))) {
+                return result.put("notModified", true);
+            }
+            FileTransfer.Range range = FileTransfer.resolve(null, read.has("offset") ? read.get("offset").toString() : null,
+                    read.has("length") ? read.get("length").toString() : null, source.size());
+            if (range == null) {
+                return result.put("error", "Requested range not satisfiable");
+            }
+            try (Tracing.Span span = Tracing.span("file.read")) {
+                result.put("content", source.read(range));
+            }
+            if (!range.isWholeFile()) {
+                result.put("offset", range.start);
+                result.put("length", range.length);
+                result.put("size", range.size);
+            }
+            return result;
+        }
+    }
+
+    /** The caller's MCP session, if it sent one, so completion is pushed to that session's SSE stream. */
+    private static String sessionId(HttpExchange exchange) {
+        return exchange.getRequestHeaders().getFirst("mcp-session-id");
+    }
+
+    /**
+     * Replies with the operation's result once it finishes, waiting up to
+     * {@code timeoutMs}. With {@code "async": true}, or if the wait runs out,
+     * replies 202 with the operation ID for the caller to follow up on.
+     */
+    private static void respond(HttpExchange exchange, Operations.Operation operation, JSONObject request)
+            throws IOException {
+        JSONObject state;
+        try (Tracing.Span span = Tracing.span("operation.wait")) {
+            state = request.optBoolean("async", false) ? operation.toJson()
+                    : operation.await(request.optLong("timeoutMs", Operations.DEFAULT_WAIT_MS));
+        }
+        switch (state.getString("state")) {
+            case "succeeded":
+                sendResponse(exchange, 200, state.getJSONObject("result").put("operationId", operation.id));
+                break;
+            case "failed":
+                String code = state.getJSONObject("error").getString("code");
+                JSONObject error = new JSONObject().put("operationId", operation.id).put("code", code);
+                if ("notFound".equals(code)) {
+                    sendResponse(exchange, 404, error.put("error", "File not found"));
+                } else if ("conflict".equals(code)) {
+                    sendResponse(exchange, 409, error.put("error", state.getJSONObject("error").getString("message")));
+                } else {
+                    sendResponse(exchange, 500, error.put("error", operation.kind + " failed for " + operation.target));
+                }
+                break;
+            default:
+                sendResponse(exchange, 202, new JSONObject().put("status", "pending").put("operationId", operation.id));
+        }
+    }
+
+    /** Writes a JSONObject, JSONArray or pre-serialized JSON string straight to the exchange. */
+    private static void sendResponse(HttpExchange exchange, int code, Object response) throws IOException {
+        setJsonHeaders(exchange);
+        JsonStreams.write(exchange, code, response);
+    }
+
+    private static void setJsonHeaders(HttpExchange exchange) {
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-        exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type");
-        
-        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(code, bytes.length);
-        OutputStream os = exchange.getResponseBody();
-        os.write(bytes);
-        os.close();
+        exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type, " + WORKSPACE_HEADER);
     }
 
-    private static String readRequestBody(HttpExchange exchange) throws IOException {
-        InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
-        BufferedReader br = new BufferedReader(isr);
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
+    /**
+     * The project a request is for: the one named by {@link #WORKSPACE_HEADER}
+     * or the {@code workspace} query parameter, else the one containing
+     * {@code filePath}, else the default project. {@code null} if a named
+     * workspace isn't open or no project is.
+     */
+    private static ProjectRegistry.Entry route(HttpExchange exchange, String filePath) {
+        ProjectRegistry projects = MCPServer.getInstance().projects();
+        String workspace = workspace(exchange);
+        if (workspace != null) {
+            return projects.find(workspace);
         }
-        br.close();
-        return sb.toString();
+        ProjectRegistry.Entry entry = projects.forFile(filePath);
+        return entry != null ? entry : projects.defaultEntry();
+    }
+
+    /** The workspace a request names, if any. */
+    private static String workspace(HttpExchange exchange) {
+        String workspace = exchange.getRequestHeaders().getFirst(WORKSPACE_HEADER);
+        return workspace != null ? workspace
+                : FileTransfer.parseQuery(exchange.getRequestURI().getRawQuery()).get("workspace");
+    }
+
+    /** Answers 404 for a request {@link #route} found no project for. */
+    private static void sendNoProject(HttpExchange exchange) throws IOException {
+        String workspace = workspace(exchange);
+        sendResponse(exchange, 404, new JSONObject()
+                .put("error", workspace == null ? "No active project" : "Unknown workspace: " + workspace));
     }
 
-    private static Project getActiveProject() {
-        Project[] projects = ProjectManager.getInstance().getOpenProjects();
-        if (projects.length > 0) {
-            return projects[0];
+    /** Whether a batch without a named workspace edits files {@link #route} would send to another project. */
+    private static boolean spansProjects(JSONArray edits, ProjectRegistry.Entry routed) {
+        ProjectRegistry projects = MCPServer.getInstance().projects();
+        for (int i = 0; i < edits.length(); i++) {
+            JSONObject edit = edits.optJSONObject(i);
+            ProjectRegistry.Entry entry = edit == null ? null : projects.forFile(edit.optString("file", null));
+            if ((entry != null ? entry : projects.defaultEntry()) != routed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Project projectOf(ProjectRegistry.Entry entry) {
+        return entry == null ? null : entry.project;
+    }
+
+    /** The first file a batch edits or reads, which decides its project. */
+    private static String firstPath(JSONObject batch) {
+        JSONArray edits = batch.optJSONArray("edits");
+        if (edits != null && !edits.isEmpty()) {
+            JSONObject edit = edits.optJSONObject(0);
+            return edit == null ? null : edit.optString("file", null);
+        }
+        JSONArray reads = batch.optJSONArray("reads");
+        if (reads != null && !reads.isEmpty()) {
+            Object read = reads.get(0);
+            return read instanceof JSONObject ? ((JSONObject) read).optString("path", null) : String.valueOf(read);
         }
         return null;
     }
 
-    private static boolean isActiveFile(Project project, VirtualFile file) {
-        Editor editor = FileEditorManager.getInstance(project).getSelectedTextEditor();
-        if (editor != null) {
-            Document doc = editor.getDocument();
-            VirtualFile activeFile = FileDocumentManager.getInstance().getFile(doc);
-            return file.equals(activeFile);
+    private static JSONObject selectionJson(ContextSnapshot context) {
+        ContextSnapshot.Selection selection = context.selection;
+        if (selection == null) {
+            return null;
         }
-        return false;
+
+        JSONObject response = new JSONObject();
+        response.put("file", selection.file);
+        // Lets clients tell whether their cached copy of the file is still current
+        response.put("documentStamp", selection.documentStamp);
+
+        if (selection.hasSelection()) {
+            response.put("selection", selection.selectedText());
+            response.put("hasSelection", true);
+            response.put("start", selection.start);
+            response.put("end", selection.end);
+        } else {
+            response.put("hasSelection", false);
+            response.put("cursor", selection.cursor);
+        }
+        return response;
     }
 }
\ No newline at end of file
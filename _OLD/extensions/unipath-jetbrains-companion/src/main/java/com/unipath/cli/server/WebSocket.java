@@ -0,0 +1,229 @@
+package com.unipath.cli.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Server side of an RFC 6455 WebSocket on an {@link ChannelServer upgraded}
+ * connection, carrying text messages only.
+ *
+ * One thread reads with {@link #readMessage}, which answers pings and the
+ * closing handshake itself; any thread may {@link #send}. Messages larger than
+ * {@code unipath.ws.maxMessageBytes} close the connection with 1009, text
+ * that isn't valid UTF-8 with 1007, and malformed frames with 1002.
+ */
+final class WebSocket implements MCPSession.Outbound {
+    static final String MAX_MESSAGE_PROPERTY = "unipath.ws.maxMessageBytes";
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int CONTINUATION = 0x0;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private static final int NORMAL_CLOSURE = 1000;
+    private static final int PROTOCOL_ERROR = 1002;
+    private static final int UNSUPPORTED_DATA = 1003;
+    private static final int INVALID_PAYLOAD = 1007;
+    private static final int MESSAGE_TOO_BIG = 1009;
+
+    private final ChannelServer.Upgraded connection;
+    private final InputStream in;
+    private final OutputStream out;
+    private final long maxMessageBytes;
+    private boolean closeSent;
+
+    WebSocket(ChannelServer.Upgraded connection) {
+        this.connection = connection;
+        this.in = connection.in;
+        this.out = connection.out;
+        this.maxMessageBytes = Long.getLong(MAX_MESSAGE_PROPERTY, 16L * 1024 * 1024);
+    }
+
+    /** The {@code Sec-WebSocket-Accept} value for a client's {@code Sec-WebSocket-Key}. */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The next text message, or {@code null} once the connection is closed. */
+    String readMessage() throws IOException {
+        ByteArrayOutputStream message = null;
+        while (true) {
+            int b0 = in.read();
+            if (b0 < 0) {
+                return null;
+            }
+            int b1 = readByte();
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            if ((b1 & 0x80) == 0 || (b0 & 0x70) != 0) {
+                // Client frames must be masked, and we negotiate no extensions
+                closeWith(PROTOCOL_ERROR);
+                return null;
+            }
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte() << 8) | readByte();
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte();
+                }
+            }
+            // Control frames may come between the fragments of a message and don't count toward it
+            boolean control = (opcode & 0x8) != 0;
+            if (control && (!fin || length > MAX_CONTROL_PAYLOAD)) {
+                closeWith(PROTOCOL_ERROR);
+                return null;
+            }
+            if (length < 0 || (!control && length + (message == null ? 0 : message.size()) > maxMessageBytes)) {
+                closeWith(MESSAGE_TOO_BIG);
+                return null;
+            }
+            byte[] mask = readFully(4);
+            byte[] payload = readFully((int) length);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+
+            switch (opcode) {
+                case TEXT:
+                case CONTINUATION:
+                    if ((opcode == TEXT) == (message != null)) {
+                        closeWith(PROTOCOL_ERROR);
+                        return null;
+                    }
+                    if (message == null) {
+                        message = new ByteArrayOutputStream(payload.length);
+                    }
+                    message.write(payload, 0, payload.length);
+                    if (fin) {
+                        String text = decode(message.toByteArray());
+                        if (text == null) {
+                            closeWith(INVALID_PAYLOAD);
+                        }
+                        return text;
+                    }
+                    break;
+                case PING:
+                    writeFrame(PONG, payload);
+                    break;
+                case PONG:
+                    break;
+                case CLOSE:
+                    close();
+                    return null;
+                case BINARY:
+                    closeWith(UNSUPPORTED_DATA);
+                    return null;
+                default:
+                    closeWith(PROTOCOL_ERROR);
+                    return null;
+            }
+        }
+    }
+
+    /** {@code bytes} as UTF-8, or {@code null} if they aren't valid UTF-8. */
+    private static String decode(byte[] bytes) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void send(String message) throws IOException {
+        writeFrame(TEXT, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Sends a normal close frame, if none was sent yet, and drops the connection. */
+    @Override
+    public void close() {
+        closeWith(NORMAL_CLOSURE);
+    }
+
+    /** Drops the connection without a close frame; a blocked {@link #send} fails at once. */
+    @Override
+    public void abort() {
+        connection.close();
+    }
+
+    private void closeWith(int status) {
+        try {
+            boolean send;
+            synchronized (this) {
+                send = !closeSent;
+                closeSent = true;
+            }
+            if (send) {
+                writeFrame(CLOSE, new byte[] {(byte) (status >> 8), (byte) status});
+            }
+        } catch (IOException e) {
+            // The peer is gone already
+        } finally {
+            connection.close();
+        }
+    }
+
+    private synchronized void writeFrame(int opcode, byte[] payload) throws IOException {
+        if (closeSent && opcode != CLOSE) {
+            throw new IOException("WebSocket is closed");
+        }
+        out.write(0x80 | opcode);
+        if (payload.length < 126) {
+            out.write(payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            out.write(126);
+            out.write(payload.length >> 8);
+            out.write(payload.length);
+        } else {
+            out.write(127);
+            long length = payload.length;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (length >> shift));
+            }
+        }
+        out.write(payload);
+        out.flush();
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Connection closed mid-frame");
+        }
+        return b;
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("Connection closed mid-frame");
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,253 @@
+package com.unipath.cli.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces bursts of edit requests.
+ *
+ * Submissions that arrive within the coalescing window are grouped by project
+ * and {@code actionId} and applied with one write command per group. Commands
+ * with the same {@code actionId} share an undo group, so each agent action
+ * undoes as one step; a submission without one is applied, and undone, on its
+ * own. Edits to the same file still land in the order they were submitted,
+ * even across groups. Files created along the way get one asynchronous VFS refresh per flush.
+ * Each submission stays atomic: if a merged commit fails, nothing of it has
+ * changed, and the submissions in it are retried one by one so a bad patch
+ * only fails itself.
+ * Work done for a merged group is traced in every submitter's trace.
+ */
+final class WriteScheduler {
+    private static final Logger LOG = Logger.getInstance(WriteScheduler.class);
+    static final String COALESCE_PROPERTY = "unipath.writes.coalesceMs";
+
+    private final long coalesceMs;
+    private final List<Submission> queue = new ArrayList<>();
+    private ScheduledExecutorService executor;
+    private boolean flushScheduled;
+
+    static final class Submission {
+        final Project project;
+        final List<DocumentEdits.Request> requests;
+        final String actionId;
+        final CompletableFuture<List<DocumentEdits.Result>> future = new CompletableFuture<>();
+        final List<Tracing.Trace> traces = Tracing.current();
+        final long queued = System.nanoTime();
+
+        Submission(Project project, List<DocumentEdits.Request> requests, String actionId) {
+            this.project = project;
+            this.requests = requests;
+            this.actionId = actionId;
+            // Until the VFS refresh after the flush, which comes after the future completes
+            traces.forEach(Tracing.Trace::hold);
+        }
+
+        void done() {
+            traces.forEach(Tracing.Trace::release);
+        }
+
+        Set<String> paths() {
+            Set<String> paths = new HashSet<>();
+            for (DocumentEdits.Request request : requests) {
+                paths.add(request.path);
+            }
+            return paths;
+        }
+    }
+
+    WriteScheduler() {
+        this.coalesceMs = Long.getLong(COALESCE_PROPERTY, 25L);
+    }
+
+    synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "unipath-writes");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        for (Submission submission : queue) {
+            submission.future.completeExceptionally(new IOException("Server is shutting down"));
+            submission.done();
+        }
+        queue.clear();
+    }
+
+    CompletableFuture<DocumentEdits.Result> submit(Project project, DocumentEdits.Request request, String actionId) {
+        return submit(project, List.of(request), actionId).thenApply(results -> results.get(0));
+    }
+
+    /** Queues {@code requests} to be applied together, all or nothing. */
+    CompletableFuture<List<DocumentEdits.Result>> submit(Project project, List<DocumentEdits.Request> requests,
+                                                         String actionId) {
+        Submission submission = new Submission(project, requests, actionId);
+        synchronized (this) {
+            if (executor == null) {
+                submission.future.completeExceptionally(new IOException("Server is not running"));
+                submission.done();
+                return submission.future;
+            }
+            queue.add(submission);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                executor.schedule(this::flush, coalesceMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        return submission.future;
+    }
+
+    private void flush() {
+        List<Submission> batch;
+        synchronized (this) {
+            batch = new ArrayList<>(queue);
+            queue.clear();
+            flushScheduled = false;
+        }
+
+        List<List<Tracing.Trace>> traces = new ArrayList<>(batch.size());
+        for (Submission submission : batch) {
+            try (Tracing.Scope scope = Tracing.bind(submission.traces)) {
+                Tracing.record("writes.queued", submission.queued);
+            }
+            traces.add(submission.traces);
+        }
+        Set<File> created = new LinkedHashSet<>();
+        try {
+            for (List<Submission> command : commands(batch)) {
+                apply(command, created);
+            }
+        } finally {
+            try (Tracing.Scope scope = Tracing.bindAll(traces)) {
+                DocumentEdits.refresh(created);
+            }
+            batch.forEach(Submission::done);
+        }
+    }
+
+    /** Applies submissions of one group in one write command. */
+    private void apply(List<Submission> command, Set<File> created) {
+        Project project = command.get(0).project;
+        List<DocumentEdits.Request> merged = new ArrayList<>();
+        List<List<Tracing.Trace>> traces = new ArrayList<>(command.size());
+        for (Submission submission : command) {
+            merged.addAll(submission.requests);
+            traces.add(submission.traces);
+        }
+        try (Tracing.Scope scope = Tracing.bindAll(traces)) {
+            List<DocumentEdits.Result> results = DocumentEdits.applyAll(project, merged, undoGroup(command.get(0)),
+                    created);
+            int from = 0;
+            for (Submission submission : command) {
+                int to = from + submission.requests.size();
+                submission.future.complete(new ArrayList<>(results.subList(from, to)));
+                from = to;
+            }
+        } catch (PatchException | IOException e) {
+            // Nothing changed; find out which submissions are at fault
+            if (command.size() == 1) {
+                command.get(0).future.completeExceptionally(e);
+            } else {
+                for (Submission submission : command) {
+                    applyAlone(project, submission, created);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to apply coalesced edits", e);
+            for (Submission submission : command) {
+                submission.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void applyAlone(Project project, Submission submission, Set<File> created) {
+        try (Tracing.Scope scope = Tracing.bind(submission.traces)) {
+            submission.future.complete(DocumentEdits.applyAll(project, submission.requests, undoGroup(submission),
+                    created));
+        } catch (PatchException | IOException | RuntimeException e) {
+            submission.future.completeExceptionally(e);
+        }
+    }
+
+    /** Commands with the same actionId undo as one step; a submission without one gets a step of its own. */
+    private static String undoGroup(Submission submission) {
+        return "unipath:" + (submission.actionId != null ? submission.actionId : UUID.randomUUID());
+    }
+
+    /**
+     * The write commands for a flush, in the order to apply them. Later edits
+     * to a file are written against the result of earlier ones, so every file
+     * sees its edits in submission order: the batch is cut into phases where
+     * each file is touched by one group only, and within a phase each group is
+     * split into rounds that touch each file at most once.
+     */
+    static List<List<Submission>> commands(List<Submission> batch) {
+        List<List<Submission>> commands = new ArrayList<>();
+        Map<List<Object>, List<Submission>> phase = new LinkedHashMap<>();
+        Map<String, List<Object>> owners = new HashMap<>();
+        for (Submission submission : batch) {
+            List<Object> group = group(submission);
+            Set<String> paths = submission.paths();
+            if (paths.stream().anyMatch(path -> owners.containsKey(path) && !owners.get(path).equals(group))) {
+                phase.values().forEach(members -> commands.addAll(rounds(members)));
+                phase.clear();
+                owners.clear();
+            }
+            phase.computeIfAbsent(group, key -> new ArrayList<>()).add(submission);
+            paths.forEach(path -> owners.put(path, group));
+        }
+        phase.values().forEach(members -> commands.addAll(rounds(members)));
+        return commands;
+    }
+
+    /** Without an actionId nothing says two submissions belong to the same undo step. */
+    private static List<Object> group(Submission submission) {
+        return Arrays.asList(submission.project, submission.actionId != null ? submission.actionId : submission);
+    }
+
+    /** Splits a group into consecutive rounds that touch each file at most once, keeping submission order. */
+    private static List<List<Submission>> rounds(List<Submission> group) {
+        List<List<Submission>> rounds = new ArrayList<>();
+        List<Submission> current = new ArrayList<>();
+        Set<String> touched = new HashSet<>();
+        for (Submission submission : group) {
+            Set<String> paths = submission.paths();
+            if (!current.isEmpty() && paths.stream().anyMatch(touched::contains)) {
+                rounds.add(current);
+                current = new ArrayList<>();
+                touched.clear();
+            }
+            current.add(submission);
+            touched.addAll(paths);
+        }
+        if (!current.isEmpty()) {
+            rounds.add(current);
+        }
+        return rounds;
+    }
+}
@@ -1,14 +1,17 @@
 package com.unipath.cli.startup;
 
+import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.startup.StartupActivity;
 import com.unipath.cli.server.MCPServer;
 import org.jetbrains.annotations.NotNull;
 
-public class UnipathStartupActivity implements StartupActivity {
+public class UnipathStartupActivity implements StartupActivity, DumbAware {
     @Override
     public void runActivity(@NotNull Project project) {
-        // Ensure MCP server is started when IDE opens
-        MCPServer.getInstance();
+        // Only registers the project; the servers bind in the background, once per IDE
+        MCPServer server = MCPServer.getInstance();
+        server.trackProject(project);
+        server.start();
     }
-}
\ No newline at end of file
+}
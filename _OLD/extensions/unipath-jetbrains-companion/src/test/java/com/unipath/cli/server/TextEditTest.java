@@ -0,0 +1,87 @@
+package com.unipath.cli.server;
+
+import org.json.JSONArray;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class TextEditTest {
+    /** Applies edits the way {@link DocumentEdits} does: validated, then from the end of the text. */
+    static String apply(String text, List<TextEdit> edits) throws PatchException {
+        StringBuilder result = new StringBuilder(text);
+        for (TextEdit edit : TextEdit.validate(edits, text.length())) {
+            result.replace(edit.offset, edit.end(), edit.text);
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void replaceAllKeepsCommonPrefixAndSuffix() {
+        TextEdit edit = TextEdit.replaceAll("hello world", "hello there world");
+        assertEquals(6, edit.offset);
+        assertEquals(0, edit.length);
+        assertEquals("there ", edit.text);
+    }
+
+    @Test
+    public void replaceAllDoesNotCountOverlappingPrefixAndSuffixTwice() {
+        TextEdit edit = TextEdit.replaceAll("aaa", "aaaa");
+        assertEquals(3, edit.offset);
+        assertEquals(0, edit.length);
+        assertEquals("a", edit.text);
+
+        edit = TextEdit.replaceAll("aaaa", "aa");
+        assertEquals(2, edit.offset);
+        assertEquals(2, edit.length);
+        assertEquals("", edit.text);
+    }
+
+    @Test
+    public void replaceAllOfIdenticalTextIsEmpty() {
+        TextEdit edit = TextEdit.replaceAll("same", "same");
+        assertEquals(0, edit.length);
+        assertEquals("", edit.text);
+    }
+
+    @Test
+    public void fromJsonAcceptsLengthOrEnd() throws PatchException {
+        List<TextEdit> edits = TextEdit.fromJson(new JSONArray(
+                "[{\"offset\":0,\"length\":1,\"text\":\"A\"},{\"offset\":2,\"end\":3},{\"offset\":4,\"text\":\"!\"}]"));
+        assertEquals(1, edits.get(1).length);
+        assertEquals("", edits.get(1).text);
+        assertEquals(0, edits.get(2).length);
+        assertEquals("Abd!e", apply("abcde", edits));
+    }
+
+    @Test
+    public void validateOrdersFromTheEndOfTheText() throws PatchException {
+        List<TextEdit> sorted = TextEdit.validate(List.of(new TextEdit(1, 1, "x"), new TextEdit(5, 0, "y"),
+                new TextEdit(3, 2, "")), 6);
+        assertEquals(5, sorted.get(0).offset);
+        assertEquals(3, sorted.get(1).offset);
+        assertEquals(1, sorted.get(2).offset);
+    }
+
+    @Test
+    public void adjacentEditsDoNotOverlap() throws PatchException {
+        assertEquals("xy", apply("ab", List.of(new TextEdit(0, 1, "x"), new TextEdit(1, 1, "y"))));
+    }
+
+    @Test
+    public void overlappingEditsAreRejected() {
+        assertThrows(PatchException.class,
+                () -> TextEdit.validate(List.of(new TextEdit(0, 3, "x"), new TextEdit(2, 2, "y")), 10));
+        assertThrows(PatchException.class,
+                () -> TextEdit.validate(List.of(new TextEdit(4, 1, "x"), new TextEdit(2, 5, "y")), 10));
+    }
+
+    @Test
+    public void editsOutsideTheTextAreRejected() {
+        assertThrows(PatchException.class, () -> TextEdit.validate(List.of(new TextEdit(3, 2, "")), 4));
+        assertThrows(PatchException.class, () -> TextEdit.validate(List.of(new TextEdit(-1, 1, "")), 4));
+        assertThrows(PatchException.class, () -> TextEdit.validate(List.of(new TextEdit(2, -1, "")), 4));
+    }
+}
@@ -0,0 +1,81 @@
+package com.unipath.cli.server;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class UnifiedDiffTest {
+    private static String patch(String text, String patch) throws PatchException {
+        return TextEditTest.apply(text, UnifiedDiff.toEdits(text, patch));
+    }
+
+    @Test
+    public void hunkReplacesItsLinesAtTheirOffset() throws PatchException {
+        List<TextEdit> edits = UnifiedDiff.toEdits("a\nb\nc\n", "@@ -2,1 +2,1 @@\n-b\n+B\n");
+        assertEquals(1, edits.size());
+        assertEquals(2, edits.get(0).offset);
+        assertEquals(2, edits.get(0).length);
+        assertEquals("B\n", edits.get(0).text);
+    }
+
+    @Test
+    public void laterHunksUseOffsetsOfTheOriginalText() throws PatchException {
+        String text = "one\ntwo\nthree\nfour\nfive\n";
+        String diff = "--- a/f\n+++ b/f\n"
+                + "@@ -1,2 +1,3 @@\n one\n+one and a half\n two\n"
+                + "@@ -4,2 +5,1 @@\n-four\n five\n";
+        List<TextEdit> edits = UnifiedDiff.toEdits(text, diff);
+        assertEquals(0, edits.get(0).offset);
+        assertEquals(8, edits.get(0).length);
+        assertEquals(14, edits.get(1).offset);
+        assertEquals("one\none and a half\ntwo\nthree\nfive\n", TextEditTest.apply(text, edits));
+    }
+
+    @Test
+    public void pureInsertionGoesAfterTheNamedLine() throws PatchException {
+        List<TextEdit> edits = UnifiedDiff.toEdits("a\nb\n", "@@ -1,0 +2,1 @@\n+x\n");
+        assertEquals(2, edits.get(0).offset);
+        assertEquals(0, edits.get(0).length);
+        assertEquals("a\nx\nb\n", TextEditTest.apply("a\nb\n", edits));
+    }
+
+    @Test
+    public void hunkIsFoundAwayFromItsHeaderLine() throws PatchException {
+        assertEquals("x\ny\na\nB\nc\n", patch("x\ny\na\nb\nc\n", "@@ -2,3 +2,3 @@\n a\n-b\n+B\n c\n"));
+    }
+
+    @Test
+    public void replacesLastLineWithoutNewline() throws PatchException {
+        assertEquals("a\nc", patch("a\nb", "@@ -2 +2 @@\n-b\n\\ No newline at end of file\n+c\n"
+                + "\\ No newline at end of file\n"));
+    }
+
+    @Test
+    public void addsNewlineAtEndOfFile() throws PatchException {
+        assertEquals("a\nb\n", patch("a\nb", "@@ -2 +2 @@\n-b\n\\ No newline at end of file\n+b\n"));
+    }
+
+    @Test
+    public void removesNewlineAtEndOfFile() throws PatchException {
+        assertEquals("a\nb", patch("a\nb\n", "@@ -2 +2 @@\n-b\n+b\n\\ No newline at end of file\n"));
+    }
+
+    @Test
+    public void mismatchedContextIsRejected() {
+        assertThrows(PatchException.class, () -> UnifiedDiff.toEdits("a\nb\n", "@@ -1,2 +1,2 @@\n a\n-c\n+d\n"));
+    }
+
+    @Test
+    public void patchWithoutHunksIsRejected() {
+        assertThrows(PatchException.class, () -> UnifiedDiff.toEdits("a\n", "--- a/f\n+++ b/f\n"));
+    }
+
+    @Test
+    public void multiFilePatchIsRejected() {
+        assertThrows(PatchException.class, () -> UnifiedDiff.toEdits("a\n",
+                "@@ -1 +1 @@\n-a\n+b\ndiff --git a/g b/g\n"));
+    }
+}
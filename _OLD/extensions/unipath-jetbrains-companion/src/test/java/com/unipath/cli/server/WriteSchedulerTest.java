@@ -0,0 +1,60 @@
+package com.unipath.cli.server;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class WriteSchedulerTest {
+    private static WriteScheduler.Submission submission(String actionId, String... paths) {
+        List<DocumentEdits.Request> requests = new ArrayList<>();
+        for (String path : paths) {
+            requests.add(new DocumentEdits.Request(path, new JSONObject().put("content", "")));
+        }
+        return new WriteScheduler.Submission(null, requests, actionId);
+    }
+
+    @Test
+    public void editWithoutActionIdStaysBetweenTheEditsAroundIt() {
+        WriteScheduler.Submission a = submission("x", "/f1");
+        WriteScheduler.Submission b = submission(null, "/f1");
+        WriteScheduler.Submission c = submission("x", "/f1");
+        assertEquals(List.of(List.of(a), List.of(b), List.of(c)), WriteScheduler.commands(List.of(a, b, c)));
+    }
+
+    @Test
+    public void interleavedActionIdsKeepTheOrderOfEditsToOneFile() {
+        WriteScheduler.Submission a = submission("x", "/f1");
+        WriteScheduler.Submission b = submission("y", "/f1");
+        WriteScheduler.Submission c = submission("x", "/f1", "/f2");
+        WriteScheduler.Submission d = submission("y", "/f2");
+        assertEquals(List.of(List.of(a), List.of(b), List.of(c), List.of(d)),
+                WriteScheduler.commands(List.of(a, b, c, d)));
+    }
+
+    @Test
+    public void sameActionIsMergedAcrossOtherFiles() {
+        WriteScheduler.Submission a = submission("x", "/f1");
+        WriteScheduler.Submission b = submission(null, "/f2");
+        WriteScheduler.Submission c = submission("x", "/f3");
+        assertEquals(List.of(List.of(a, c), List.of(b)), WriteScheduler.commands(List.of(a, b, c)));
+    }
+
+    @Test
+    public void sameActionSplitsIntoRoundsPerFile() {
+        WriteScheduler.Submission a = submission("x", "/f1");
+        WriteScheduler.Submission b = submission("x", "/f2");
+        WriteScheduler.Submission c = submission("x", "/f1");
+        assertEquals(List.of(List.of(a, b), List.of(c)), WriteScheduler.commands(List.of(a, b, c)));
+    }
+
+    @Test
+    public void submissionsWithoutActionIdAreNotMerged() {
+        WriteScheduler.Submission a = submission(null, "/f1");
+        WriteScheduler.Submission b = submission(null, "/f2");
+        assertEquals(List.of(List.of(a), List.of(b)), WriteScheduler.commands(List.of(a, b)));
+    }
+}